@@ -0,0 +1,100 @@
+package io.nats.client.impl;
+
+import io.nats.NatsRunnerUtils;
+import io.nats.NatsServerRunner;
+import io.nats.client.Connection;
+import io.nats.client.ErrorListener;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import io.nats.client.Subscription;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.logging.Level;
+
+/**
+ * A small local cluster for the benchmarks. The servers must be routed,
+ * otherwise a message published on one side of a failover never reaches the other.
+ */
+public class ApBenchmarkCluster implements AutoCloseable {
+
+    static {
+        NatsRunnerUtils.setDefaultOutputLevel(Level.SEVERE);
+    }
+
+    final NatsServerRunner[] runners;
+    final String[] servers;
+
+    public ApBenchmarkCluster(int size) throws Exception {
+        int[] ports = new int[size];
+        int[] clusterPorts = new int[size];
+        for (int i = 0; i < size; i++) {
+            ports[i] = NatsRunnerUtils.nextPort();
+            clusterPorts[i] = NatsRunnerUtils.nextPort();
+        }
+
+        runners = new NatsServerRunner[size];
+        servers = new String[size];
+        for (int i = 0; i < size; i++) {
+            StringBuilder routes = new StringBuilder();
+            for (int r = 0; r < size; r++) {
+                if (r != i) {
+                    routes.append(" nats-route://127.0.0.1:").append(clusterPorts[r]);
+                }
+            }
+            String[] inserts = new String[] {
+                "server_name: ap-bench-" + i,
+                "cluster {",
+                "  name: ap-bench",
+                "  listen: 127.0.0.1:" + clusterPorts[i],
+                "  routes: [" + routes + " ]",
+                "}"
+            };
+            runners[i] = NatsServerRunner.builder().port(ports[i]).configInserts(inserts).build();
+            servers[i] = NatsRunnerUtils.getNatsLocalhostUri(ports[i]);
+        }
+        awaitRoutes();
+    }
+
+    public Options.Builder optionsBuilder() {
+        return Options.builder()
+            .servers(servers)
+            .noRandomize()
+            .maxReconnects(-1)
+            .reconnectWait(Duration.ZERO)
+            .errorListener(new ErrorListener() {});
+    }
+
+    /**
+     * A plain connection to the last server in the cluster, used to publish into
+     * or observe the connection being measured from outside of the failover.
+     * @return the connection
+     * @throws IOException if the connection fails
+     * @throws InterruptedException if interrupted
+     */
+    public Connection observer() throws IOException, InterruptedException {
+        return Nats.connect(Options.builder().server(servers[servers.length - 1]).build());
+    }
+
+    private void awaitRoutes() throws Exception {
+        try (Connection first = Nats.connect(servers[0]);
+             Connection last = Nats.connect(servers[servers.length - 1])) {
+            Subscription sub = first.subscribe("ap.bench.route");
+            first.flush(Duration.ofSeconds(2));
+            for (int x = 0; x < 100; x++) {
+                last.publish("ap.bench.route", null);
+                if (sub.nextMessage(Duration.ofMillis(100)) != null) {
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("Benchmark cluster routes did not form");
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (NatsServerRunner runner : runners) {
+            runner.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.nats.client.impl;
+
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+import io.nats.client.ForceReconnectOptions;
+import io.nats.client.Nats;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the time from the loss of the active socket to the first message
+ * delivered to a subscription on the connection after it fails over.
+ * The socket loss is simulated with a forced close reconnect.
+ * Compare the "active-passive" and "reconnect" modes, where "reconnect"
+ * is a plain jnats connection to the same cluster.
+ * <p>Run with {@code ./gradlew jmh -PjmhArgs="FailoverBenchmark"}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class FailoverBenchmark {
+    static final String SUBJECT = "ap.bench.failover";
+    static final long PROBE_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    static final long READY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"active-passive", "reconnect"})
+    public String mode;
+
+    ApBenchmarkCluster cluster;
+    NatsConnection conn;
+    Connection publisher;
+    final AtomicLong received = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        cluster = new ApBenchmarkCluster(3);
+        if ("active-passive".equals(mode)) {
+            conn = ApConnection.connect(ApOptions.builder(cluster.optionsBuilder().build()).build());
+        }
+        else {
+            conn = (NatsConnection) Nats.connect(cluster.optionsBuilder().build());
+        }
+        Dispatcher d = conn.createDispatcher(m -> received.incrementAndGet());
+        d.subscribe(SUBJECT);
+        publisher = cluster.observer();
+    }
+
+    @Setup(Level.Invocation)
+    public void awaitReady() throws Exception {
+        long deadline = System.nanoTime() + READY_TIMEOUT_NANOS;
+        while (!ready()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Connection not ready for the next failover");
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        publisher.flush(Duration.ofSeconds(2));
+        received.set(0);
+    }
+
+    private boolean ready() {
+        if (conn.getStatus() != Connection.Status.CONNECTED) {
+            return false;
+        }
+        return !(conn instanceof ApConnection)
+            || ((ApConnection) conn).getPassiveStatus() == Connection.Status.CONNECTED;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        publisher.close();
+        conn.close();
+        cluster.close();
+    }
+
+    @Benchmark
+    public long socketLossToFirstMessage() throws Exception {
+        conn.forceReconnect(ForceReconnectOptions.FORCE_CLOSE_INSTANCE);
+        long probes = 0;
+        while (received.get() == 0) {
+            publisher.publish(SUBJECT, null);
+            probes++;
+            LockSupport.parkNanos(PROBE_INTERVAL_NANOS);
+        }
+        return probes;
+    }
+}
@@ -0,0 +1,146 @@
+package io.nats.client.impl;
+
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+import io.nats.client.ForceReconnectOptions;
+import io.nats.client.Message;
+import io.nats.client.Nats;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts the messages lost or duplicated when a connection fails over
+ * while a stream of sequenced messages is flowing.
+ * "outbound" publishes from the connection that fails over to an observer,
+ * "inbound" publishes from the observer to the connection that fails over.
+ * The counts are reported as the {@code lost} and {@code duplicated} secondary results.
+ * <p>Run with {@code ./gradlew jmh -PjmhArgs="FailoverGapBenchmark"}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 20)
+@Fork(1)
+public class FailoverGapBenchmark {
+    static final String SUBJECT = "ap.bench.gap";
+    static final int MESSAGES = 2000;
+    static final long PUBLISH_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Param({"active-passive", "reconnect"})
+    public String mode;
+
+    @Param({"outbound", "inbound"})
+    public String direction;
+
+    ApBenchmarkCluster cluster;
+    NatsConnection conn;
+    Connection observer;
+    volatile Tracker tracker;
+    int runs;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Gap {
+        public long lost;
+        public long duplicated;
+    }
+
+    static class Tracker {
+        final String run;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(MESSAGES);
+        final AtomicInteger distinct = new AtomicInteger();
+        final AtomicInteger duplicated = new AtomicInteger();
+
+        Tracker(int run) {
+            this.run = run + ".";
+        }
+
+        byte[] payload(int seq) {
+            return (run + seq).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        void onMessage(Message m) {
+            String payload = new String(m.getData(), StandardCharsets.US_ASCII);
+            if (!payload.startsWith(run)) {
+                return; // a straggler from an earlier invocation
+            }
+            int seq = Integer.parseInt(payload.substring(run.length()));
+            if (seen.getAndIncrement(seq) == 0) {
+                distinct.incrementAndGet();
+            }
+            else {
+                duplicated.incrementAndGet();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        cluster = new ApBenchmarkCluster(3);
+        if ("active-passive".equals(mode)) {
+            conn = ApConnection.connect(ApOptions.builder(cluster.optionsBuilder().build()).build());
+        }
+        else {
+            conn = (NatsConnection) Nats.connect(cluster.optionsBuilder().build());
+        }
+        observer = cluster.observer();
+
+        Connection receiver = "outbound".equals(direction) ? observer : conn;
+        Dispatcher d = receiver.createDispatcher(m -> tracker.onMessage(m));
+        d.subscribe(SUBJECT);
+        receiver.flush(Duration.ofSeconds(2));
+    }
+
+    @Setup(Level.Invocation)
+    public void awaitReady() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (conn.getStatus() != Connection.Status.CONNECTED
+            || (conn instanceof ApConnection && ((ApConnection) conn).getPassiveStatus() != Connection.Status.CONNECTED)) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Connection not ready for the next failover");
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        tracker = new Tracker(++runs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        observer.close();
+        conn.close();
+        cluster.close();
+    }
+
+    @Benchmark
+    public void failoverUnderLoad(Gap gap) throws Exception {
+        Connection sender = "outbound".equals(direction) ? conn : observer;
+        Tracker t = tracker;
+        Thread publishing = new Thread(() -> {
+            for (int seq = 0; seq < MESSAGES; seq++) {
+                sender.publish(SUBJECT, t.payload(seq));
+                LockSupport.parkNanos(PUBLISH_INTERVAL_NANOS);
+            }
+        });
+        publishing.start();
+
+        // fail over roughly in the middle of the stream
+        LockSupport.parkNanos(PUBLISH_INTERVAL_NANOS * MESSAGES / 2);
+        conn.forceReconnect(ForceReconnectOptions.FORCE_CLOSE_INSTANCE);
+        publishing.join();
+
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (t.distinct.get() < MESSAGES && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        gap.lost += MESSAGES - t.distinct.get();
+        gap.duplicated += t.duplicated.get();
+    }
+}
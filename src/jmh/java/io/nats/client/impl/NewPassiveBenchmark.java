@@ -0,0 +1,52 @@
+package io.nats.client.impl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of building a passive connection, the work done by the
+ * passive rebuild after every failover: a TCP connect, the optional TLS upgrade,
+ * and the CONNECT/PING handshake.
+ * <p>Run with {@code ./gradlew jmh -PjmhArgs="NewPassiveBenchmark"}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class NewPassiveBenchmark {
+
+    ApBenchmarkCluster cluster;
+    ApConnection apc;
+    NatsConnection built;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        cluster = new ApBenchmarkCluster(2);
+        apc = ApConnection.connect(ApOptions.builder(cluster.optionsBuilder().build()).build());
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeBuilt() throws Exception {
+        if (built != null) {
+            built.close();
+            built = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        apc.close();
+        cluster.close();
+    }
+
+    @Benchmark
+    public boolean newPassive() throws Exception {
+        // the same work ApConnection does for each passive it builds
+        built = new ApStandbyConnection(apc.passiveOptions);
+        built.connect(true);
+        return built.isConnected();
+    }
+}
@@ -1,186 +1,1855 @@
 package io.nats.client.impl;
 
+import io.nats.client.ConnectionListener;
 import io.nats.client.ForceReconnectOptions;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import io.nats.client.NUID;
+import io.nats.client.NatsSystemClock;
 import io.nats.client.Options;
 import io.nats.client.ServerPool;
+import io.nats.client.api.AccountStatistics;
+import io.nats.client.api.ConsumerInfo;
 import io.nats.client.api.ServerInfo;
+import io.nats.client.api.StreamInfo;
+import io.nats.client.support.NatsJetStreamConstants;
+import io.nats.client.support.NatsUri;
+import io.nats.client.support.ScheduledTask;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
 
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ApConnection extends NatsConnection {
 
+    private static final byte[] WAKE_PING = "PING\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
     final ApOptions apOptions;
     final Options passiveOptions;  // since we may be making passive more than once
     final ApPassiveServerPool apServerPool;
+    final ExecutorService passiveExecutor;
+    final boolean passiveExecutorIsInternal;
+    final AtomicBoolean passiveRebuilding;
+    final AtomicBoolean latencyProbePending;
+    final AtomicBoolean healthCheckPending;
+    final AtomicBoolean jetStreamWarmPending;
+    final AtomicBoolean switchoverPending;
+    final ApSubscriptionMirror subscriptionMirror;
+    final ApStatistics apStatistics;
+    final ReentrantLock standbyLock;
+    final ConcurrentLinkedDeque<NatsConnection> reserves;
+    final ApLatencyProbe latencyProbe;
+    final ApStandbyHealth standbyHealth;
+    final ApPublishBuffer publishBuffer;
+    final int publishAckInterval;
+    final AtomicBoolean ackPingDeferred;
+    final AtomicLong queuedCount;  // messages put in the writer's queue, for the replay
+    final ApFanOut fanOut;
+    final ApConnectionGroup group;
+    final ApJetStreamCache jetStreamCache;
+    final ApPullTracker pullTracker;
+    final ApTimeline timeline;
+    final ApSwitchoverPolicy switchoverPolicy;
 
-    NatsConnection passive;
+    volatile NatsConnection passive;
+    volatile NatsUri failureDomainServer;
+    ScheduledTask latencyProbeTask;
+    ScheduledTask healthCheckTask;
+    ScheduledTask jetStreamWarmTask;
+    ScheduledTask switchoverTask;
 
     public static ApConnection connect(ApOptions apOptions) throws IOException, InterruptedException {
+        return connect(apOptions, null);
+    }
+
+    static ApConnection connect(ApOptions apOptions, ApConnectionGroup group) throws IOException, InterruptedException {
         if (apOptions == null) {
             apOptions = ApOptions.builder().build();
         }
 
-        Options.Builder activeBuilder = new Options.Builder(apOptions.options);
+        Options.Builder activeBuilder = new Options.Builder(apOptions.options);
+
+        // this set's up the server pool here instead of waiting for the
+        // NatsConnection constructor to do it.
+        ServerPool apServerPool = new ApPassiveServerPool(
+            apOptions.options.getServerPool() == null
+                ? new NatsServerPool()
+                : apOptions.options.getServerPool(),
+            apOptions.dnsCacheTtl);
+        activeBuilder.serverPool(apServerPool);
+
+        // the passive options are copied from the active's, so standbys share these too,
+        // except the callback executor, see applyOwnCallbackExecutor
+        applySharedExecutors(apOptions, activeBuilder);
+
+        ApConnection apc = new ApConnection(apOptions, activeBuilder.build(), group);
+        apc.connect();
+        return apc;
+    }
+
+    static void applySharedExecutors(ApOptions apOptions, Options.Builder builder) {
+        ApSharedExecutors shared = apOptions.sharedExecutors;
+        if (shared != null) {
+            Options o = apOptions.options;
+            if (o.executorIsInternal()) {
+                builder.executor(shared.getExecutor());
+            }
+            if (o.scheduledExecutorIsInternal()) {
+                builder.scheduledExecutor(shared.getScheduledExecutor());
+            }
+            applyOwnCallbackExecutor(apOptions, builder);
+            if (o.connectExecutorIsInternal()) {
+                builder.connectExecutor(shared.getExecutor());
+            }
+        }
+    }
+
+    // a serial callback executor is per connection, or a slow listener on one connection
+    // holds up the events of every connection sharing it
+    static void applyOwnCallbackExecutor(ApOptions apOptions, Options.Builder builder) {
+        if (apOptions.sharedExecutors != null && apOptions.options.callbackExecutorIsInternal()) {
+            builder.callbackExecutor(apOptions.sharedExecutors.newCallbackExecutor());
+        }
+    }
+
+    static void applySlimStandby(ApOptions apOptions, Options.Builder builder, Options from) {
+        if (apOptions.slimStandbys) {
+            builder.bufferSize(Math.min(ApOptions.SLIM_BUFFER_SIZE, from.getBufferSize()));
+        }
+    }
+
+    private ApConnection(ApOptions apOptions, Options activeOptions, ApConnectionGroup group) {
+        super(activeOptions);
+        this.apOptions = apOptions;
+        this.group = group;
+
+        // we made the pool, so we know this cast is safe
+        apServerPool = (ApPassiveServerPool)activeOptions.getServerPool();
+
+        // get the server pool from the NatsConnection instance
+        // it's only ready after [super] construction
+        Options.Builder passiveBuilder = new Options.Builder(activeOptions)
+            .connectionListener(apOptions.passiveConnectionListener)
+            .errorListener(apOptions.passiveErrorListener)
+            .serverPool(apServerPool);
+        applyOwnCallbackExecutor(apOptions, passiveBuilder);
+        applySlimStandby(apOptions, passiveBuilder, activeOptions);
+        this.passiveOptions = passiveBuilder.build();
+
+        passiveRebuilding = new AtomicBoolean();
+        latencyProbePending = new AtomicBoolean();
+        healthCheckPending = new AtomicBoolean();
+        jetStreamWarmPending = new AtomicBoolean();
+        switchoverPending = new AtomicBoolean();
+        standbyLock = new ReentrantLock();
+        reserves = new ConcurrentLinkedDeque<>();
+        apStatistics = new ApStatistics(apOptions.statisticsSink);
+        subscriptionMirror = apOptions.mirrorSubscriptions ? new ApSubscriptionMirror() : null;
+        latencyProbe = apOptions.latencyProbeInterval == null || apOptions.latencyProbeInterval.isZero()
+            ? null
+            : new ApLatencyProbe(apServerPool, (int) activeOptions.getConnectionTimeout().toMillis());
+        standbyHealth = apOptions.healthCheckInterval == null || apOptions.healthCheckInterval.isZero()
+            ? null
+            : new ApStandbyHealth(apOptions.healthMaxRtt.toNanos());
+        publishBuffer = apOptions.replayBufferSize == 0 ? null : new ApPublishBuffer(apOptions.replayBufferSize, apStatistics);
+        publishAckInterval = Math.max(1, apOptions.replayBufferSize / 4);
+        ackPingDeferred = new AtomicBoolean();
+        queuedCount = new AtomicLong();
+        fanOut = apOptions.readFanOut ? new ApFanOut() : null;
+        jetStreamCache = apOptions.jetStreamWarmInterval == null || apOptions.jetStreamWarmInterval.isZero()
+            ? null
+            : new ApJetStreamCache(apOptions.jetStreamWarmOptions);
+        pullTracker = apOptions.consumerContinuity ? new ApPullTracker() : null;
+        timeline = new ApTimeline(apOptions.timelineSize);
+        switchoverPolicy = apOptions.switchoverMargin == null || apOptions.switchoverMargin.isZero()
+            ? null
+            : new ApSwitchoverPolicy(apOptions.switchoverMargin.toNanos(), apOptions.switchoverWindow.toNanos());
+        passiveExecutorIsInternal = apOptions.passiveExecutor == null && apOptions.sharedExecutors == null;
+        if (apOptions.passiveExecutor != null) {
+            passiveExecutor = apOptions.passiveExecutor;
+        }
+        else if (apOptions.sharedExecutors != null) {
+            passiveExecutor = apOptions.sharedExecutors.getPassiveExecutor();
+        }
+        else {
+            passiveExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, Options.DEFAULT_THREAD_NAME_PREFIX + "-ap-passive");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        // not on the passive executor, where a hanging lookup would hold up the next failover's work
+        apServerPool.startDnsCache(activeOptions.getExecutor());
+    }
+
+    private void connect() throws InterruptedException, IOException {
+        if (apOptions.connectRaceStagger != null) {
+            raceInitialServers();
+        }
+        int connectsLeft = serverPool.getServerList().size();
+        long connectNanos = NatsSystemClock.nanoTime();
+        long connectMillis = System.currentTimeMillis();
+        while (!isConnected() && connectsLeft-- > 0) {
+            super.connect(true);
+        }
+        recordHandshake(this, connectNanos, connectMillis);
+
+        if (!isConnected()) {
+            throw new IOException("Unable to make Active connection to NATS servers");
+        }
+
+        apServerPool.setActiveServer(currentServer);
+        updateFailureDomain();
+        if (group == null) {
+            newPassive();
+        }
+        if (apOptions.connectRaceStagger != null && latencyProbe == null) {
+            // the race's latencies would otherwise steer every later standby
+            apServerPool.clearLatencies();
+        }
+        if (standbyTarget() > 1) {
+            rebuildPassive(null);
+        }
+        if (latencyProbe != null) {
+            // the probe blocks, so it is only scheduled here and runs on the passive executor
+            latencyProbeTask = new ScheduledTask(getScheduledExecutor(), apOptions.latencyProbeInterval.toNanos(),
+                TimeUnit.NANOSECONDS, () -> executePassiveTask(latencyProbePending, this::probeLatency));
+        }
+        if (standbyHealth != null) {
+            healthCheckTask = new ScheduledTask(getScheduledExecutor(), apOptions.healthCheckInterval.toNanos(),
+                TimeUnit.NANOSECONDS, () -> executePassiveTask(healthCheckPending, this::checkStandbyHealth));
+        }
+        if (jetStreamCache != null) {
+            jetStreamWarmTask = new ScheduledTask(getScheduledExecutor(), apOptions.jetStreamWarmInterval.toNanos(),
+                TimeUnit.NANOSECONDS, () -> executePassiveTask(jetStreamWarmPending, () -> jetStreamCache.refresh(passive)));
+        }
+        if (switchoverPolicy != null) {
+            switchoverTask = new ScheduledTask(getScheduledExecutor(), switchoverPolicy.sampleIntervalNanos(),
+                TimeUnit.NANOSECONDS, () -> executePassiveTask(switchoverPending, this::checkSwitchover));
+        }
+    }
+
+    /**
+     * Happy eyeballs for the bootstrap servers. Full connects, with the INFO, CONNECT and
+     * authentication, are started one stagger apart until two servers have connected,
+     * or every server has connected or failed. The connect times are recorded as latencies,
+     * so the pool hands out the fastest servers first, and a server that accepts the TCP
+     * connection but fails the rest of the connect is ranked last. The racers are closed,
+     * so the active and the passive connect to their servers once more.
+     */
+    private void raceInitialServers() throws InterruptedException {
+        List<NatsUri> servers = new ArrayList<>();
+        for (String server : apServerPool.getServerList()) {
+            try {
+                servers.add(new NatsUri(server));
+            }
+            catch (URISyntaxException e) {
+                // the connect will report it
+            }
+        }
+        if (servers.size() < 2) {
+            return;
+        }
+
+        int timeoutMillis = (int) options.getConnectionTimeout().toMillis();
+        long staggerNanos = apOptions.connectRaceStagger.toNanos();
+        CountDownLatch answered = new CountDownLatch(2);
+        AtomicInteger remaining = new AtomicInteger(servers.size());
+        AtomicBoolean racing = new AtomicBoolean(true);
+        for (int i = 0; i < servers.size(); i++) {
+            NatsUri nuri = servers.get(i);
+            long delayNanos = staggerNanos * i;
+            getExecutor().execute(() -> {
+                try {
+                    long until = NatsSystemClock.nanoTime() + delayNanos;
+                    while (racing.get() && answered.getCount() > 0 && NatsSystemClock.nanoTime() < until) {
+                        answered.await(until - NatsSystemClock.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                    if (racing.get() && answered.getCount() > 0) {
+                        NatsConnection racer = newRacer(nuri);
+                        try {
+                            long start = NatsSystemClock.nanoTime();
+                            try {
+                                racer.connect(false);
+                            }
+                            catch (IOException e) {
+                                // ranked last
+                            }
+                            long nanos = racer.isConnected() ? NatsSystemClock.nanoTime() - start : Long.MAX_VALUE;
+                            if (racing.get()) {
+                                apServerPool.recordLatency(nuri, nanos);
+                                if (nanos != Long.MAX_VALUE) {
+                                    answered.countDown();
+                                }
+                            }
+                        }
+                        finally {
+                            racer.close(false, true);
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        answered.countDown();
+                        answered.countDown();
+                    }
+                }
+            });
+        }
+        answered.await(timeoutMillis + staggerNanos / 1_000_000 * servers.size(), TimeUnit.MILLISECONDS);
+        racing.set(false);
+    }
+
+    private void executePassiveTask(Runnable task) {
+        try {
+            passiveExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // closing
+        }
+    }
+
+    /**
+     * Runs a periodic task on the passive executor, unless its last run is still queued or running,
+     * so ticks do not pile up behind a slow run or a blocked executor.
+     * @param pending whether a run of the task is queued or running
+     * @param task the task
+     */
+    private void executePassiveTask(AtomicBoolean pending, Runnable task) {
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            passiveExecutor.execute(() -> {
+                try {
+                    task.run();
+                }
+                finally {
+                    pending.set(false);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // closing
+            pending.set(false);
+        }
+    }
+
+    private void probeLatency() {
+        if (isClosing() || isClosed()) {
+            return;
+        }
+        NatsConnection p = passive;
+        latencyProbe.probe();
+        if (latencyProbe.shouldRotate(p, apOptions.latencyRotateMargin)) {
+            try {
+                replacePassive(p);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Samples the active's and the passive's RTT, and switches over
+     * once the active has been slower for the whole window.
+     */
+    private void checkSwitchover() {
+        NatsConnection p = passive;
+        if (isClosing() || isClosed() || !isConnected() || !isUsable(p)) {
+            switchoverPolicy.reset();
+            return;
+        }
+        long activeRtt = rtt(this);
+        long passiveRtt = rtt(p);
+        if (switchoverPolicy.sample(activeRtt, passiveRtt, NatsSystemClock.nanoTime())) {
+            try {
+                switchover();
+            }
+            catch (IOException e) {
+                processException(e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long rtt(NatsConnection conn) {
+        try {
+            return conn.RTT().toNanos();
+        }
+        catch (IOException | RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Checks every standby, replacing the unhealthy ones. The passive is kept
+     * until its replacement is connected, a reserve is closed and rebuilt.
+     */
+    private void checkStandbyHealth() {
+        if (isClosing() || isClosed()) {
+            return;
+        }
+        List<NatsConnection> standbys = new ArrayList<>();
+        NatsConnection p = passive;
+        if (p != null) {
+            standbys.add(p);
+        }
+        standbys.addAll(reserves);
+        standbyHealth.retain(standbys);
+
+        try {
+            for (NatsConnection standby : standbys) {
+                if (standbyHealth.check(standby)) {
+                    continue;
+                }
+                apStatistics.increment(ApStatistics.Counter.UNHEALTHY_STANDBYS);
+                replaceStandby(standby);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void replaceStandby(NatsConnection standby) throws InterruptedException {
+        if (standby == passive) {
+            replacePassive(standby);
+        }
+        else if (reserves.contains(standby)) {
+            discardPassive(standby);
+            rebuildPassive(null);
+        }
+    }
+
+    /**
+     * A standby's server announced lame duck mode, so the standby is rebuilt on another server.
+     * @param standby the standby
+     */
+    private void standbyLameDuck(NatsConnection standby) {
+        NatsUri nuri = standby.currentServer;
+        if (nuri != null) {
+            apServerPool.lameDuck(nuri);
+        }
+        timeline.record(ApTimeline.Type.LAME_DUCK, nuri);
+        try {
+            replaceStandby(standby);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The active's server announced lame duck mode. Standbys on the same server are
+     * rebuilt elsewhere first, then the active switches over while its socket is still up,
+     * rather than waiting for the server to drop it.
+     * @param server the server going away
+     */
+    private void activeLameDuck(NatsUri server) {
+        if (isClosing() || isClosed()) {
+            return;
+        }
+        apServerPool.lameDuck(server);
+        timeline.record(ApTimeline.Type.LAME_DUCK, server);
+        try {
+            List<NatsConnection> sameServer = new ArrayList<>();
+            NatsConnection p = passive;
+            if (p != null && server.equivalent(p.currentServer)) {
+                sameServer.add(p);
+            }
+            for (NatsConnection reserve : reserves) {
+                if (server.equivalent(reserve.currentServer)) {
+                    sameServer.add(reserve);
+                }
+            }
+            for (NatsConnection standby : sameServer) {
+                replaceStandby(standby);
+            }
+
+            p = passive;
+            boolean elsewhere = isUsable(p) && !server.equivalent(p.currentServer);
+            if ((elsewhere || (group != null && group.hasConnectedStandby())) && switchover()) {
+                apStatistics.increment(ApStatistics.Counter.LAME_DUCK_SWITCHOVERS);
+            }
+        }
+        catch (IOException e) {
+            processException(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Builds a new passive and swaps it in for the current one,
+     * which is only closed once the new passive is connected.
+     * The new passive connects to the fastest server not in use.
+     * @param current the passive to replace
+     */
+    private void replacePassive(NatsConnection current) throws InterruptedException {
+        NatsConnection candidate = newStandbyConnection();
+        try {
+            candidate.connect(true);
+        }
+        catch (IOException e) {
+            candidate.close(false, true);
+            return;
+        }
+
+        boolean replaced = false;
+        standbyLock.lock();
+        try {
+            if (candidate.isConnected() && passive == current && !isClosing() && !isClosed()) {
+                passive = candidate;
+                replaced = true;
+            }
+        }
+        finally {
+            standbyLock.unlock();
+        }
+
+        if (replaced) {
+            refreshStandbyServers();
+            if (subscriptionMirror != null) {
+                subscriptionMirror.replay(candidate, subscribers);
+            }
+            placeFanOut();
+            apStatistics.increment(ApStatistics.Counter.PASSIVE_ROTATIONS);
+            current.close(false, true);
+        }
+        else {
+            candidate.close(false, true);
+        }
+    }
+
+    private void newPassive() throws InterruptedException {
+        try {
+            while (!makePassive()) {
+                // it was in the active's failure domain, try the next server
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Unable to make Passive connection to NATS servers");
+        }
+    }
+
+    /**
+     * Builds one standby connection. If there is no passive, it becomes the passive,
+     * otherwise it is added to the reserve standbys.
+     * @return false if the standby turned out to be in the active's failure domain
+     * while there are servers in other domains, so it was discarded
+     */
+    private boolean makePassive() throws IOException, InterruptedException {
+        timeline.record(ApTimeline.Type.PASSIVE_REBUILD_STARTED, null);
+        NatsConnection candidate = newStandbyConnection();
+
+        standbyLock.lock();
+        try {
+            if (passive == null) {
+                passive = candidate;
+            }
+        }
+        finally {
+            standbyLock.unlock();
+        }
+
+        long connectNanos = NatsSystemClock.nanoTime();
+        long connectMillis = System.currentTimeMillis();
+        try {
+            candidate.connect(true);
+        }
+        catch (IOException e) {
+            discardPassive(candidate);
+            timeline.record(ApTimeline.Type.PASSIVE_REBUILD_FAILED, null);
+            throw e;
+        }
+        if (!candidate.isConnected()) {
+            discardPassive(candidate);
+            timeline.record(ApTimeline.Type.PASSIVE_REBUILD_FAILED, null);
+            throw new IOException("Unable to make Passive connection to NATS servers");
+        }
+        recordHandshake(candidate, connectNanos, connectMillis);
+        if (isClosing() || isClosed()) {
+            discardPassive(candidate);
+            return true;
+        }
+        if (inFailureDomain(candidate)) {
+            apServerPool.markSameFailureDomain(candidate.currentServer);
+            if (apServerPool.hasOtherFailureDomain()) {
+                discardPassive(candidate);
+                return false;
+            }
+        }
+
+        standbyLock.lock();
+        try {
+            if (passive == null) {
+                passive = candidate;
+            }
+            else if (passive != candidate) {
+                reserves.add(candidate);
+            }
+        }
+        finally {
+            standbyLock.unlock();
+        }
+        refreshStandbyServers();
+
+        if (subscriptionMirror != null && passive == candidate) {
+            subscriptionMirror.replay(candidate, subscribers);
+        }
+        placeFanOut();
+        apStatistics.increment(ApStatistics.Counter.PASSIVE_BUILDS);
+        apStatistics.passiveRestored();
+        timeline.record(ApTimeline.Type.PASSIVE_REBUILD_FINISHED, candidate.currentServer);
+        return true;
+    }
+
+    /**
+     * Tells the pool the active's failure domain, if the active server has changed since last time.
+     * Resolving the active's host may block, so this is not done on the reconnect path.
+     */
+    private void updateFailureDomain() {
+        NatsUri active = currentServer;
+        if (apOptions.failureDomain == ApFailureDomain.NONE || active == null || active.equals(failureDomainServer)) {
+            return;
+        }
+        failureDomainServer = active;
+        List<String> ips = Collections.emptyList();
+        if (apOptions.failureDomain == ApFailureDomain.HOST || apOptions.failureDomain == ApFailureDomain.ZONE) {
+            ips = active.hostIsIpAddress() ? null : apServerPool.resolveHostToIps(active.getHost(), false, true);
+            if (ips == null) {
+                ips = Collections.singletonList(active.getHost());
+            }
+        }
+        apServerPool.setActiveFailureDomain(ips);
+    }
+
+    /**
+     * Whether a connected standby is in the same failure domain as the active,
+     * which can only be known once its server info has arrived.
+     * @param candidate the standby
+     * @return true if it is in the active's failure domain
+     */
+    private boolean inFailureDomain(NatsConnection candidate) {
+        if (apOptions.failureDomain == ApFailureDomain.NONE) {
+            return false;
+        }
+        ServerInfo activeInfo = getServerInfo();
+        ServerInfo candidateInfo = candidate.getServerInfo();
+        if (activeInfo == null || candidateInfo == null) {
+            return false;
+        }
+        if (activeInfo.getServerId() != null && activeInfo.getServerId().equals(candidateInfo.getServerId())) {
+            return true;
+        }
+        if (apOptions.failureDomain == ApFailureDomain.SERVER) {
+            return false;
+        }
+        if (candidate.currentServer != null && apServerPool.isSameFailureDomain(candidate.currentServer)) {
+            return true;
+        }
+        if (apOptions.failureDomain == ApFailureDomain.ZONE && apOptions.zoneResolver != null) {
+            String zone = apOptions.zoneResolver.apply(activeInfo);
+            return zone != null && zone.equals(apOptions.zoneResolver.apply(candidateInfo));
+        }
+        return false;
+    }
+
+    private NatsConnection newStandbyConnection() {
+        NatsConnection candidate = new ApStandbyConnection(passiveOptions);
+        candidate.addConnectionListener((conn, type) -> {
+            if (type == ConnectionListener.Events.RECONNECTED || type == ConnectionListener.Events.DISCONNECTED) {
+                refreshStandbyServers();
+                placeFanOut();
+            }
+            // the passive's own reconnect knows nothing about the mirrored interest
+            if (subscriptionMirror != null && type == ConnectionListener.Events.RECONNECTED && passive == candidate) {
+                subscriptionMirror.replay(candidate, subscribers);
+            }
+            if (type == ConnectionListener.Events.LAME_DUCK) {
+                executePassiveTask(() -> standbyLameDuck(candidate));
+            }
+        });
+        return candidate;
+    }
+
+    private void discardPassive(NatsConnection candidate) throws InterruptedException {
+        standbyLock.lock();
+        try {
+            if (passive == candidate) {
+                passive = reserves.pollFirst();
+            }
+            else {
+                reserves.remove(candidate);
+            }
+        }
+        finally {
+            standbyLock.unlock();
+        }
+        refreshStandbyServers();
+        placeFanOut();
+        candidate.close(false, true);
+    }
+
+    /**
+     * Takes the standby to promote, preferring the passive. A standby that is not
+     * connected or is known to be unhealthy is skipped. If the passive is taken,
+     * the next reserve becomes the passive.
+     * @return the standby, or null if no standby is usable
+     */
+    private NatsConnection takeStandby() {
+        standbyLock.lock();
+        try {
+            NatsConnection p = passive;
+            if (isUsable(p)) {
+                passive = reserves.pollFirst();
+                return p;
+            }
+            for (NatsConnection reserve : reserves) {
+                if (isUsable(reserve)) {
+                    reserves.remove(reserve);
+                    return reserve;
+                }
+            }
+            return null;
+        }
+        finally {
+            standbyLock.unlock();
+        }
+    }
+
+    /**
+     * Fan-out subscriptions are served by the passive while it is connected, otherwise by the active.
+     */
+    private void placeFanOut() {
+        if (fanOut != null) {
+            fanOut.place(fanOutTarget());
+        }
+    }
+
+    private NatsConnection fanOutTarget() {
+        NatsConnection p = passive;
+        return isUsable(p) ? p : this;
+    }
+
+    /**
+     * Group members don't keep their own standbys, the group's pool covers them.
+     */
+    private int standbyTarget() {
+        return group == null ? apOptions.standbyDepth : 0;
+    }
+
+    private boolean hasUsableStandby() {
+        if (isUsable(passive) || (group != null && group.hasConnectedStandby())) {
+            return true;
+        }
+        for (NatsConnection reserve : reserves) {
+            if (isUsable(reserve)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isUsable(NatsConnection standby) {
+        return standby != null && standby.isConnected()
+            && (standbyHealth == null || !standbyHealth.isUnhealthy(standby));
+    }
+
+    private int standbyCount() {
+        return (passive == null ? 0 : 1) + reserves.size();
+    }
+
+    private void refreshStandbyServers() {
+        List<NatsUri> standbyServers = new ArrayList<>();
+        NatsConnection p = passive;
+        if (p != null && p.currentServer != null) {
+            standbyServers.add(p.currentServer);
+        }
+        for (NatsConnection reserve : reserves) {
+            NatsUri nuri = reserve.currentServer;
+            if (nuri != null) {
+                standbyServers.add(nuri);
+            }
+        }
+        apServerPool.setStandbyServers(standbyServers);
+    }
+
+    /**
+     * Builds standby connections on the passive executor until the standby depth is reached,
+     * retrying with backoff until it succeeds or this connection is closed.
+     * A standby whose data port has been taken over is closed first.
+     * @param retired the standby that was promoted, or null
+     */
+    private void rebuildPassive(NatsConnection retired) {
+        if (!passiveRebuilding.compareAndSet(false, true)) {
+            if (retired != null) {
+                // a rebuild is already running and will notice the missing standby
+                executePassiveTask(() -> closeRetired(retired));
+            }
+            return;
+        }
+        executeRebuildPassive(retired, apOptions.passiveRebuildWait.toMillis(), NatsSystemClock.nanoTime());
+    }
+
+    private void executeRebuildPassive(NatsConnection retired, long waitMillis, long start) {
+        try {
+            passiveExecutor.execute(() -> rebuildPassive(retired, waitMillis, start));
+        }
+        catch (RejectedExecutionException e) {
+            passiveRebuilding.set(false);
+        }
+    }
+
+    /**
+     * One round of building standbys. After a failed build the next round is scheduled
+     * on the scheduled executor, so the passive executor is not held while it waits.
+     * @param retired the standby that was promoted, or null
+     * @param waitMillis the wait after a failed build
+     * @param start when the build now being tried started
+     */
+    private void rebuildPassive(NatsConnection retired, long waitMillis, long start) {
+        boolean retrying = false;
+        try {
+            closeRetired(retired);
+            while (!isClosing() && !isClosed()) {
+                mirrorToPassive();
+                if (standbyCount() >= standbyTarget()) {
+                    break;
+                }
+                try {
+                    updateFailureDomain();
+                    if (!makePassive()) {
+                        continue; // it was in the active's failure domain, try the next server
+                    }
+                    apStatistics.record(ApStatistics.Phase.REBUILD_PASSIVE, NatsSystemClock.nanoTime() - start);
+                    waitMillis = apOptions.passiveRebuildWait.toMillis();
+                    start = NatsSystemClock.nanoTime();
+                    continue;
+                }
+                catch (IOException e) {
+                    // the passive's own listeners have already been told why
+                    apStatistics.increment(ApStatistics.Counter.FAILED_PASSIVE_BUILDS);
+                }
+                long nextWaitMillis = Math.min(waitMillis * 2, apOptions.passiveRebuildMaxWait.toMillis());
+                long failedStart = start;
+                getScheduledExecutor().schedule(() -> executeRebuildPassive(null, nextWaitMillis, failedStart),
+                    waitMillis, TimeUnit.MILLISECONDS);
+                retrying = true;
+                return;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (RejectedExecutionException e) {
+            // closing
+            return;
+        }
+        finally {
+            if (!retrying) {
+                passiveRebuilding.set(false);
+            }
+        }
+
+        // a standby may have been taken after the loop checked the count
+        if (!isClosing() && !isClosed() && standbyCount() < standbyTarget()) {
+            rebuildPassive(null);
+        }
+    }
+
+    /**
+     * A reserve that moved up to passive does not have the mirrored interest yet.
+     */
+    private void mirrorToPassive() {
+        NatsConnection p = passive;
+        if (subscriptionMirror != null && p != null && p.isConnected() && !subscriptionMirror.isTarget(p)) {
+            subscriptionMirror.replay(p, subscribers);
+        }
+    }
+
+    private void closeRetired(NatsConnection retired) {
+        if (retired != null) {
+            try {
+                retired.close(false, true);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Disconnects a standby from its data port without closing the port, so the active can
+     * take the port over. The standby's reader only sees that it was stopped between reads,
+     * and would read, and lose, the active's first bytes, or stop in the middle of a message.
+     * So once the standby's writer has stopped and its PINGs are answered, its socket is held,
+     * and a PING is written on the port. The reader then gets one byte at a time and stops
+     * on the PONG's last byte. Whatever came after the PONG is read first by the active's reader.
+     * <p>
+     * The standby's own subscriptions, its fan-out subscriptions and its request inbox, use sids
+     * from the standby's sequence, which clash with the active's once the port is shared.
+     * So before anything is stopped they are unsubscribed, and a flush makes sure the standby's
+     * reader has seen the last message for them.
+     * @param standby the standby being promoted
+     * @return the port, or null if the standby could not be drained, or its reader or writer
+     * did not stop in time, so the port cannot be taken over
+     */
+    private @Nullable DataPort releasePort(NatsConnection standby) throws InterruptedException {
+        long timeoutNanos = apOptions.portReleaseTimeout.toNanos();
+        DataPort port = standby.dataPort;
+        ApHandoffStream stream = port == null ? null : ApHandoffStream.of(port);
+        if (stream == null || !(standby instanceof ApStandbyConnection)) {
+            // a data port type that does not read from a socket stream can't be stopped on a PONG
+            return null;
+        }
+        Set<String> drained = new HashSet<>(standby.subscribers.keySet());
+        try {
+            if (!drained.isEmpty()) {
+                for (String sid : drained) {
+                    String unsub = "UNSUB " + sid;
+                    standby.queueInternalOutgoing(new ProtocolMessage(unsub.getBytes(StandardCharsets.US_ASCII), true));
+                }
+                standby.flush(apOptions.portReleaseTimeout);
+            }
+        }
+        catch (TimeoutException | IllegalStateException e) {
+            return null;
+        }
+        if (subscriptionMirror != null) {
+            // a mirrored sid the standby also used lost its interest along with the standby's
+            drained.forEach(subscriptionMirror::forget);
+        }
+
+        Future<Boolean> writerStopped = standby.writer.stop();
+        try {
+            if (writerStopped != null) {
+                writerStopped.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            // a PING the writer dropped when it stopped is never answered, so the port can't be taken
+            for (CompletableFuture<Boolean> pong : new ArrayList<>(standby.pongQueue)) {
+                pong.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            CompletableFuture<Boolean> handedOff = ((ApStandbyConnection) standby).startHandoff();
+            stream.hold();
+            port.write(WAKE_PING, WAKE_PING.length);
+            port.flush();
+            handedOff.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            standby.reader.stop(false).get(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (IOException | ExecutionException | CancellationException | TimeoutException e) {
+            return null;
+        }
+        stream.release();
+        if (!drained.containsAll(standby.subscribers.keySet())) {
+            // something subscribed on the standby while it was being drained
+            return null;
+        }
+
+        standby.dataPort = null;
+        standby.dataPortFuture = null;
+        return port;
+    }
+
+    @Override
+    protected void reconnectImplConnect() throws InterruptedException {
+        NatsConnection standby = takeStandby();
+        if (standby == null) {
+            if (apServerPool.activeServerRef.get() == null) {
+                // this can happen on the initial connect, if the bootstrap
+                // servers are unreachable.
+                // Don't do anything, it will fall into the connect's loop
+                return;
+            }
+            if (group != null) {
+                standby = group.take(apServerPool.activeServerRef.get());
+            }
+            if (standby == null) {
+                standby = raceConnect();
+            }
+        }
+
+        long start = NatsSystemClock.nanoTime();
+        DataPort standbyPort = standby == null ? null : releasePort(standby);
+        if (standby != null && standbyPort == null) {
+            // its reader is still on the port, so the port cannot be shared
+            timeline.record(ApTimeline.Type.FAILOVER_FAILED, standby.currentServer);
+            closeRetired(standby);
+            standby = null;
+        }
+        if (standby == null) {
+
+            // the replacement passive is still being built, so do a regular reconnect
+            if (subscriptionMirror != null) {
+                subscriptionMirror.clearInherited();
+            }
+            apStatistics.increment(ApStatistics.Counter.COLD_RECONNECTS);
+            timeline.record(ApTimeline.Type.COLD_RECONNECT, null);
+            List<NatsMessage> replay = takenPublishes();
+            long connectNanos = NatsSystemClock.nanoTime();
+            long connectMillis = System.currentTimeMillis();
+            super.reconnectImplConnect();
+            if (isConnected()) {
+                recordHandshake(this, connectNanos, connectMillis);
+                timeline.record(ApTimeline.Type.CONNECTED, currentServer);
+                apServerPool.setActiveServer(currentServer);
+                requeuePublishes(replay);
+                placeFanOut();
+                rebuildPassive(null);
+            }
+            return;
+        }
+
+        boolean swapped = false;
+        List<NatsMessage> replay = Collections.emptyList();
+        long mark = recordPhase(ApStatistics.Phase.RELEASE_PORT, start);
+        updateStatus(Status.RECONNECTING, standby.currentServer, standby.currentServer);
+        clearCurrentServer();
+
+        try {
+            statusLock.lock();
+            try {
+                if (this.connecting) {
+                    return;
+                }
+                this.connecting = true;
+                statusChanged.signalAll();
+            }
+            finally {
+                statusLock.unlock();
+            }
+
+            // The old port is already closed, see closeSocketImpl, so the writer stops
+            // as soon as its write fails. A reader that has not stopped yet is abandoned,
+            // it stays stopped and never reports the old port's failure. The writer owns
+            // the outgoing queues, so it can't be abandoned. If it doesn't stop in time
+            // the failover fails, and the active does a regular reconnect.
+            Future<Boolean> readerStopped = this.reader.stop();
+            if (readerStopped != null && !readerStopped.isDone()) {
+                this.reader = new NatsConnectionReader(this);
+                apStatistics.increment(ApStatistics.Counter.ABANDONED_READERS);
+            }
+            timeline.record(ApTimeline.Type.READER_STOPPED, null);
+            Future<Boolean> writerStopped = this.writer.stop();
+            if (writerStopped != null) {
+                writerStopped.get(apOptions.portReleaseTimeout.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            timeline.record(ApTimeline.Type.WRITER_STOPPED, null);
+            mark = recordPhase(ApStatistics.Phase.STOP_READER_WRITER, mark);
+
+            // written before the writer starts on the new port, so they go out ahead of what it still holds
+            replay = takenPublishes();
+            replayPublishes(standbyPort, replay);
+
+            if (subscriptionMirror != null) {
+                subscriptionMirror.promote(standby);
+            }
+            if (fanOut != null) {
+                fanOut.promote(standby);
+            }
+            if (passive == null) {
+                apStatistics.passiveLost();
+            }
+            swapped = true;
+
+            this.dataPort = standbyPort;
+            this.dataPortFuture = new CompletableFuture<>();
+            this.dataPortFuture.complete(this.dataPort);
+            mark = recordPhase(ApStatistics.Phase.SWAP_PORT, mark);
+            timeline.record(ApTimeline.Type.PORT_SWAPPED, standby.currentServer);
+
+            this.reader.start(this.dataPortFuture);
+            this.writer.start(this.dataPortFuture);
+            mark = recordPhase(ApStatistics.Phase.START_READER_WRITER, mark);
+
+            statusLock.lock();
+            try {
+                this.connecting = false;
+                this.currentServer = standby.currentServer;
+                this.serverInfo.set(standby.serverInfo.get());
+                this.serverAuthErrors.clear(); // reset on successful connection
+                updateStatus(Status.CONNECTED); // will signal status change, we also signal in finally
+            }
+            finally {
+                statusLock.unlock();
+            }
+            recordPhase(ApStatistics.Phase.UPDATE_STATUS, mark);
+            timeline.record(ApTimeline.Type.CONNECTED, currentServer);
+            apStatistics.record(ApStatistics.Phase.FAILOVER, NatsSystemClock.nanoTime() - start);
+            apStatistics.increment(ApStatistics.Counter.FAILOVERS);
+        }
+        catch (Exception exp) {
+            timeline.record(ApTimeline.Type.FAILOVER_FAILED, standby.currentServer);
+            processException(exp);
+            if (subscriptionMirror != null) {
+                subscriptionMirror.clearInherited();
+            }
+            try {
+                // allow force reconnect since this is pretty exceptional,
+                // a connection failure while trying to connect
+                this.closeSocket(false, true);
+            }
+            catch (InterruptedException e) {
+                processException(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        finally {
+            statusLock.lock();
+            try {
+                this.connecting = false;
+                statusChanged.signalAll();
+            }
+            finally {
+                statusLock.unlock();
+            }
+            if (!swapped) {
+                // the standby no longer owns its port, so it is closed here
+                try {
+                    standbyPort.close();
+                }
+                catch (IOException e) {
+                    // it is being discarded anyway
+                }
+                closeRetired(standby);
+            }
+        }
+
+        if (swapped) {
+            // the passive is rebuilt in the background, the active is already usable
+            apServerPool.setActiveServer(currentServer);
+            if (!replay.isEmpty()) {
+                sendAckPing();
+            }
+            refreshStandbyServers();
+            placeFanOut();
+            rebuildPassive(standby);
+        }
+    }
+
+    /**
+     * Connects to several servers not in use at once, keeping the first to finish the handshake
+     * so its data port can be taken over like a standby's. The others are closed.
+     * @return the winner, or null if racing is off or no server could be reached in time
+     */
+    private NatsConnection raceConnect() throws InterruptedException {
+        List<NatsUri> servers = new ArrayList<>();
+        while (servers.size() < apOptions.failoverRaceWidth) {
+            NatsUri nuri = apServerPool.nextServerExcluding(servers);
+            if (nuri == null) {
+                break;
+            }
+            servers.add(nuri);
+        }
+        if (servers.isEmpty()) {
+            return null;
+        }
+
+        long start = NatsSystemClock.nanoTime();
+        CompletableFuture<NatsConnection> winner = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(servers.size());
+        for (NatsUri nuri : servers) {
+            try {
+                getExecutor().execute(() -> race(nuri, winner, remaining));
+            }
+            catch (RejectedExecutionException e) {
+                return null; // closing
+            }
+        }
+
+        NatsConnection won;
+        try {
+            won = winner.get(options.getConnectionTimeout().toNanos(), TimeUnit.NANOSECONDS);
+        }
+        catch (ExecutionException | TimeoutException e) {
+            won = null;
+        }
+        // a racer that finishes after this is closed
+        winner.complete(null);
+        if (won != null) {
+            apStatistics.record(ApStatistics.Phase.RACE_CONNECT, NatsSystemClock.nanoTime() - start);
+            apStatistics.increment(ApStatistics.Counter.RACE_FAILOVERS);
+        }
+        return won;
+    }
+
+    private void race(NatsUri nuri, CompletableFuture<NatsConnection> winner, AtomicInteger remaining) {
+        NatsConnection racer = newRacer(nuri);
+        long connectNanos = NatsSystemClock.nanoTime();
+        long connectMillis = System.currentTimeMillis();
+        try {
+            try {
+                racer.connect(false);
+            }
+            catch (IOException e) {
+                // lost
+            }
+            if (racer.isConnected()) {
+                recordHandshake(racer, connectNanos, connectMillis);
+            }
+            if (!racer.isConnected() || !winner.complete(racer)) {
+                racer.close(false, true);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            if (remaining.decrementAndGet() == 0) {
+                winner.complete(null);
+            }
+        }
+    }
+
+    private NatsConnection newRacer(NatsUri nuri) {
+        // racers are not standbys, so the passive connection listener does not hear about them
+        return new ApStandbyConnection(new Options.Builder(passiveOptions)
+            .connectionListener(null)
+            .serverPool(new ApPinnedServerPool(apServerPool, nuri))
+            .build());
+    }
+
+    /**
+     * The publishes the old port's server never acknowledged that the writer had already taken
+     * off its queue, so they were written to the old port, or lost with it. Whatever the writer
+     * still holds goes out once on the new port. Every message counted by {@link #queuedCount}
+     * that the writer no longer holds was taken, so the writer is stopped first, to hold still.
+     * @return the publishes, oldest first
+     * @throws InterruptedException if interrupted while the writer stops
+     */
+    private List<NatsMessage> takenPublishes() throws InterruptedException {
+        if (publishBuffer == null) {
+            return Collections.emptyList();
+        }
+        try {
+            Future<Boolean> writerStopped = writer.stop();
+            if (writerStopped != null) {
+                writerStopped.get(apOptions.portReleaseTimeout.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (ExecutionException | TimeoutException e) {
+            // what it took can't be told, so anything still queued may go out twice
+            return publishBuffer.unacknowledged();
+        }
+        // read before the count, so a publish queued meanwhile at worst goes out twice, never not at all
+        long pending = outgoingPendingMessageCount();
+        return publishBuffer.taken(queuedCount.get() - pending);
+    }
+
+    /**
+     * Writes the publishes to the new port before its writer starts, so they reach the server
+     * in their order, ahead of everything still queued. Some may have arrived before, so this can
+     * duplicate, which JetStream drops by Nats-Msg-Id.
+     * @param port the new port
+     * @param replay the publishes, see {@link #takenPublishes()}
+     * @throws IOException if the write fails
+     */
+    private void replayPublishes(DataPort port, List<NatsMessage> replay) throws IOException {
+        if (replay.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (NatsMessage msg : replay) {
+            byte[] headers = msg.getHeaders().getSerialized();
+            byte[] data = msg.getData() == null ? new byte[0] : msg.getData();
+            out.write(("HPUB " + msg.getSubject() + " " + headers.length + " " + (headers.length + data.length) + "\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+            out.write(headers);
+            out.write(data);
+            out.write(CRLF);
+        }
+        byte[] bytes = out.toByteArray();
+        port.write(bytes, bytes.length);
+        for (int i = 0; i < replay.size(); i++) {
+            apStatistics.increment(ApStatistics.Counter.REPLAYED_PUBLISHES);
+        }
+    }
+
+    /**
+     * After a regular reconnect the writer is already running on the new port,
+     * so the publishes are queued again, behind what it still holds.
+     * @param replay the publishes, see {@link #takenPublishes()}
+     */
+    private void requeuePublishes(List<NatsMessage> replay) {
+        for (NatsMessage msg : replay) {
+            long index = queuedCount.incrementAndGet();
+            super.queueOutgoing(new NatsMessage(msg.getSubject(), msg.getReplyTo(), msg.getHeaders(), msg.getData()));
+            publishBuffer.requeued(msg, index);
+            apStatistics.increment(ApStatistics.Counter.REPLAYED_PUBLISHES);
+        }
+        if (!replay.isEmpty()) {
+            sendAckPing();
+        }
+    }
 
-        // this set's up the server pool here instead of waiting for the
-        // NatsConnection constructor to do it.
-        ServerPool apServerPool = new ApPassiveServerPool(
-            apOptions.options.getServerPool() == null
-                ? new NatsServerPool()
-                : apOptions.options.getServerPool());
-        activeBuilder.serverPool(apServerPool);
+    @Override
+    protected void publishInternal(String subject, String replyTo, Headers headers, byte[] data, boolean validateSubjectAndReplyTo) {
+        if (jetStreamCache != null) {
+            jetStreamCache.observe(subject);
+        }
+        if (pullTracker != null) {
+            pullTracker.published(subject, replyTo, data);
+        }
+        ServerInfo info = getServerInfo();
+        if (publishBuffer == null || !isReplayable(subject, replyTo) || info == null || !info.isHeadersSupported()) {
+            super.publishInternal(subject, replyTo, headers, data, validateSubjectAndReplyTo);
+            return;
+        }
+        // kept by queueOutgoing, with its place in the writer's queue
+        super.publishInternal(subject, replyTo, withMsgId(headers), data, validateSubjectAndReplyTo);
+    }
 
-        ApConnection apc = new ApConnection(apOptions, activeBuilder.build());
-        apc.connect();
-        return apc;
+    /**
+     * Counts what goes into the writer's queue, and keeps the replayable publishes,
+     * see {@link #takenPublishes()}. Counted before it is queued, so a count read after
+     * the queue's length never misses it.
+     */
+    @Override
+    void queueOutgoing(NatsMessage msg) {
+        if (publishBuffer == null) {
+            super.queueOutgoing(msg);
+            return;
+        }
+        long index = queuedCount.incrementAndGet();
+        super.queueOutgoing(msg);
+        if (isReplayable(msg.getSubject(), msg.getReplyTo()) && msg.hasHeaders()
+            && msg.getHeaders().containsKey(NatsJetStreamConstants.MSG_ID_HDR)) {
+            // added after it is queued, so a PING sent after this is queued after it
+            long sequence = publishBuffer.add(msg, index);
+            if (sequence % publishAckInterval == 0) {
+                sendAckPing();
+            }
+        }
     }
 
-    private ApConnection(ApOptions apOptions, Options activeOptions) {
-        super(activeOptions);
-        this.apOptions = apOptions;
+    /**
+     * A stopped writer drops its queued PINGs and PONGs, so only what it keeps is counted.
+     */
+    @Override
+    void queueInternalOutgoing(NatsMessage msg) {
+        if (publishBuffer != null && !msg.isFilterOnStop()) {
+            queuedCount.incrementAndGet();
+        }
+        super.queueInternalOutgoing(msg);
+    }
 
-        // we made the pool, so we know this cast is safe
-        apServerPool = (ApPassiveServerPool)activeOptions.getServerPool();
+    /**
+     * Sends a PING so its PONG acknowledges the publishes queued before it. One PING more than
+     * {@link Options#getMaxPingsOut()} closes the connection, so it is not sent while it would
+     * leave no room for the connection's own PINGs. The next PONG sends it instead.
+     */
+    private void sendAckPing() {
+        int max = options.getMaxPingsOut();
+        if (max > 0 && pongQueue.size() + 1 >= max) {
+            ackPingDeferred.set(true);
+            return;
+        }
+        ackPingDeferred.set(false);
+        sendPing();
+    }
 
-        // get the server pool from the NatsConnection instance
-        // it's only ready after [super] construction
-        this.passiveOptions = new Options.Builder(activeOptions)
-            .connectionListener(apOptions.passiveConnectionListener)
-            .errorListener(apOptions.passiveErrorListener)
-            .serverPool(apServerPool)
-            .build();
+    /**
+     * Only plain publishes are kept for replay. A request's reply would go to an inbox
+     * that may be gone after the failover, and JetStream API calls, acks and pull requests
+     * must not reach the server twice.
+     * @param subject the subject
+     * @param replyTo the reply to, may be null
+     * @return true if the publish can be replayed
+     */
+    static boolean isReplayable(String subject, String replyTo) {
+        return replyTo == null && !subject.startsWith("$JS.") && !subject.startsWith("$SYS.");
     }
 
-    private void connect() throws InterruptedException, IOException {
-        int connectsLeft = serverPool.getServerList().size();
-        while (!isConnected() && connectsLeft-- > 0) {
-            super.connect(true);
+    /**
+     * @param headers the message's headers, may be null
+     * @return the headers if they have a Nats-Msg-Id, otherwise a copy with a new one
+     */
+    private static Headers withMsgId(Headers headers) {
+        if (headers != null && headers.containsKey(NatsJetStreamConstants.MSG_ID_HDR)) {
+            return headers;
         }
+        Headers withId = headers == null ? new Headers() : new Headers(headers);
+        return withId.put(NatsJetStreamConstants.MSG_ID_HDR, NUID.nextGlobal());
+    }
 
-        if (!isConnected()) {
-            throw new IOException("Unable to make Active connection to NATS servers");
+    @Override
+    protected void deliverMessage(NatsMessage msg) {
+        if (pullTracker != null) {
+            NatsSubscription sub = subscribers.get(msg.getSID());
+            pullTracker.delivered(msg, sub == null ? null : sub.getSubject());
         }
-
-        apServerPool.setActiveServer(currentServer);
-        newPassive();
+        super.deliverMessage(msg);
     }
 
-    private void newPassive() throws InterruptedException {
-        if (passive != null) {
-            passive.close(false, true);
+    @Override
+    protected void processConnectionEvent(ConnectionListener.Events type, String uriDetails) {
+        super.processConnectionEvent(type, uriDetails);
+        if (type == ConnectionListener.Events.RESUBSCRIBED && pullTracker != null) {
+            // the subscriptions are back, so the pulls can be answered
+            for (NatsMessage pull : pullTracker.reissue()) {
+                publishInternal(pull.getSubject(), pull.getReplyTo(), null, pull.getData(), false);
+                apStatistics.increment(ApStatistics.Counter.REISSUED_PULLS);
+            }
         }
-        passive = new NatsConnection(passiveOptions);
-        try {
-            passive.connect(true);
+        else if (type == ConnectionListener.Events.LAME_DUCK) {
+            NatsUri server = currentServer;
+            if (server != null) {
+                executePassiveTask(() -> activeLameDuck(server));
+            }
         }
-        catch (IOException e) {
-            throw new RuntimeException("Unable to make Passive connection to NATS servers");
+    }
+
+    @Override
+    protected CompletableFuture<Boolean> sendPing(boolean treatAsInternal) {
+        if (publishBuffer == null) {
+            return super.sendPing(treatAsInternal);
         }
-        if (!passive.isConnected()) {
-            throw new RuntimeException("Unable to make Passive connection to NATS servers");
+        long sequence = publishBuffer.lastSequence();
+        CompletableFuture<Boolean> pong = super.sendPing(treatAsInternal);
+        if (pong != null) {
+            pong.thenAccept(ok -> {
+                if (Boolean.TRUE.equals(ok)) {
+                    publishBuffer.acknowledge(sequence);
+                    if (ackPingDeferred.get()) {
+                        sendAckPing();
+                    }
+                }
+            });
         }
+        return pong;
     }
 
+    /**
+     * When a standby is ready to take over, the old port is closed before the reader and writer
+     * are stopped, and neither is waited on, so a dead socket cannot hold up the failover.
+     * Otherwise, and when closing, the socket is closed as usual.
+     */
     @Override
-    protected void reconnectImplConnect() throws InterruptedException {
-        if (passive == null) {
-            // this can happen on the initial connect, if the bootstrap
-            // servers are unreachable.
-            // Don't do anything, it will fall into the connect's loop
+    protected void closeSocketImpl(boolean forceClose) {
+        if (!isClosing() && !isClosed()) {
+            timeline.record(ApTimeline.Type.ACTIVE_LOST, currentServer);
+        }
+        if (isClosing() || isClosed() || !hasUsableStandby()) {
+            super.closeSocketImpl(forceClose);
             return;
         }
-
-        updateStatus(Status.RECONNECTING, passive.currentServer, passive.currentServer);
         clearCurrentServer();
-
+        reader.stop();
+        writer.stop();
+        if (dataPortFuture != null) {
+            dataPortFuture.cancel(true);
+            dataPortFuture = null;
+        }
         try {
-            statusLock.lock();
-            try {
-                if (this.connecting) {
-                    return;
+            if (dataPort != null) {
+                if (forceClose) {
+                    dataPort.forceClose();
+                }
+                else {
+                    dataPort.close();
                 }
-                this.connecting = true;
-                statusChanged.signalAll();
-            }
-            finally {
-                statusLock.unlock();
-            }
-
-            long timeoutNanos = options.getConnectionTimeout().toNanos();
-            // Make sure the reader and writer are stopped
-            if (reader.isRunning()) {
-                this.reader.stop().get(timeoutNanos, TimeUnit.NANOSECONDS);
-            }
-            if (writer.isRunning()) {
-                this.writer.stop().get(timeoutNanos, TimeUnit.NANOSECONDS);
             }
+        }
+        catch (IOException e) {
+            processException(e);
+        }
+        cleanUpPongQueue();
+    }
 
-            this.dataPort = passive.dataPort;
-            this.dataPortFuture = new CompletableFuture<>();
-            this.dataPortFuture.complete(this.dataPort);
-
-            this.reader.start(this.dataPortFuture);
-            this.writer.start(this.dataPortFuture);
-
-            statusLock.lock();
-            try {
-                this.connecting = false;
-                this.currentServer = passive.currentServer;
-                this.serverInfo.set(passive.serverInfo.get());
-                this.serverAuthErrors.clear(); // reset on successful connection
-                updateStatus(Status.CONNECTED); // will signal status change, we also signal in finally
-            }
-            finally {
-                statusLock.unlock();
-            }
+    /**
+     * Records how long a secure connect took, split by whether the TLS session was resumed.
+     * The active, its standbys and racers are all built from copies of the same options,
+     * which share one SSLContext, so its client session cache lets a connection resume
+     * a session an earlier connection had with the same server. A resumed session keeps
+     * the creation time of the session it resumed, which is before this connect started.
+     * @param conn the connection that just connected
+     * @param startNanos when the connect started
+     * @param startMillis the wall clock time the connect started
+     */
+    private void recordHandshake(NatsConnection conn, long startNanos, long startMillis) {
+        DataPort dp = conn.dataPort;
+        if (!(dp instanceof SocketDataPort) || !(((SocketDataPort) dp).socket instanceof SSLSocket)) {
+            return;
         }
-        catch (Exception exp) {
-            processException(exp);
-            try {
-                // allow force reconnect since this is pretty exceptional,
-                // a connection failure while trying to connect
-                this.closeSocket(false, true);
-            }
-            catch (InterruptedException e) {
-                processException(e);
-                Thread.currentThread().interrupt();
-            }
+        SSLSession session = ((SSLSocket) ((SocketDataPort) dp).socket).getSession();
+        long nanos = NatsSystemClock.nanoTime() - startNanos;
+        if (session.getCreationTime() < startMillis) {
+            apStatistics.record(ApStatistics.Phase.TLS_RESUMED_CONNECT, nanos);
+            apStatistics.increment(ApStatistics.Counter.TLS_RESUMED_HANDSHAKES);
         }
-        finally {
-            statusLock.lock();
-            try {
-                this.connecting = false;
-                statusChanged.signalAll();
-            }
-            finally {
-                statusLock.unlock();
+        else {
+            apStatistics.record(ApStatistics.Phase.TLS_FULL_CONNECT, nanos);
+            apStatistics.increment(ApStatistics.Counter.TLS_FULL_HANDSHAKES);
+        }
+    }
+
+    private long recordPhase(ApStatistics.Phase phase, long since) {
+        long now = NatsSystemClock.nanoTime();
+        apStatistics.record(phase, now - since);
+        return now;
+    }
+
+    @Override
+    protected void sendSubscriptionMessage(String sid, String subject, String queueName, boolean treatAsInternal) {
+        if (subscriptionMirror != null) {
+            // resubscribes after a swap are internal, and the interest may already be on the port
+            if (treatAsInternal && subscriptionMirror.inherited(sid)) {
+                return;
             }
+            subscriptionMirror.subscribe(passive, sid, subject, queueName);
         }
+        super.sendSubscriptionMessage(sid, subject, queueName, treatAsInternal);
+    }
 
-        apServerPool.setActiveServer(currentServer);
-        newPassive();
+    @Override
+    protected void sendUnsub(NatsSubscription sub, int after) {
+        super.sendUnsub(sub, after);
+        if (subscriptionMirror != null) {
+            subscriptionMirror.unsubscribe(passive, sub.getSID(), after);
+        }
     }
 
     @Override
     public void close() throws InterruptedException {
+        if (latencyProbeTask != null) {
+            latencyProbeTask.shutdown();
+        }
+        if (healthCheckTask != null) {
+            healthCheckTask.shutdown();
+        }
+        if (jetStreamWarmTask != null) {
+            jetStreamWarmTask.shutdown();
+        }
+        if (switchoverTask != null) {
+            switchoverTask.shutdown();
+        }
+
         // close the passive
         // - manually send DISCONNECTED to the user's passive connection listener
-        if (passive != null) {
-            passive.close();
+        NatsConnection p = passive;
+        if (p != null) {
+            p.close();
             if (apOptions.passiveConnectionListener != null) {
-                passive.updateStatus(Status.CLOSED);
+                p.updateStatus(Status.CLOSED);
             }
         }
+        NatsConnection reserve;
+        while ((reserve = reserves.pollFirst()) != null) {
+            reserve.close();
+        }
         super.close();
+        if (passiveExecutorIsInternal) {
+            passiveExecutor.shutdownNow();
+        }
+
+        // a passive rebuild may have finished while we were closing
+        NatsConnection late = passive;
+        if (late != null && late != p) {
+            late.close();
+        }
         apOptions.options.shutdownExecutors();
     }
 
+    /**
+     * Promote the passive while the active is still working, using the connection timeout
+     * as the flush timeout. See {@link #switchover(Duration)}.
+     * @return true if there was a usable standby to switch over to
+     * @throws IOException if the flush fails
+     * @throws InterruptedException if interrupted while flushing
+     */
+    public boolean switchover() throws IOException, InterruptedException {
+        return switchover(options.getConnectionTimeout());
+    }
+
+    /**
+     * Promote the passive while the active is still working, for instance to move off
+     * a degraded server. The active is flushed first, so everything sent so far has reached
+     * its server, then the passive's data port is taken over as in a failover.
+     * Anything published meanwhile stays queued and goes out on the promoted port.
+     * @param flushTimeout how long to wait for the flush
+     * @return true if there was a usable standby to switch over to
+     * @throws IOException if the flush fails
+     * @throws InterruptedException if interrupted while flushing
+     */
+    public boolean switchover(Duration flushTimeout) throws IOException, InterruptedException {
+        if (isClosing() || isClosed() || !isConnected() || !hasUsableStandby()) {
+            return false;
+        }
+        if (switchoverPolicy != null) {
+            switchoverPolicy.reset();
+        }
+        apStatistics.increment(ApStatistics.Counter.SWITCHOVERS);
+        timeline.record(ApTimeline.Type.SWITCHOVER, currentServer);
+        forceReconnect(ForceReconnectOptions.builder().flush(flushTimeout).build());
+        return true;
+    }
+
+    /**
+     * Returns the last stream sequence the active acked for a consumer, 0 if none.
+     * Requires {@link ApOptions.Builder#consumerContinuity()}.
+     * @param stream the stream name
+     * @param consumer the consumer name
+     * @return the stream sequence
+     */
+    public long getLastAckedStreamSequence(String stream, String consumer) {
+        if (pullTracker == null) {
+            throw new IllegalStateException("Consumer continuity is not enabled.");
+        }
+        return pullTracker.getLastAckedStreamSequence(stream, consumer);
+    }
+
+    /**
+     * Register a stream, and optionally its consumers, with the warm JetStream cache,
+     * so they are refreshed before the active first asks for them.
+     * Requires {@link ApOptions.Builder#jetStreamWarmInterval(Duration)}.
+     * @param stream the stream name
+     * @param consumers the consumer names
+     */
+    public void warmJetStream(String stream, String... consumers) {
+        requireJetStreamCache().track(stream, consumers);
+    }
+
+    /**
+     * Returns the stream info from the warm JetStream cache, without a round trip.
+     * Requires {@link ApOptions.Builder#jetStreamWarmInterval(Duration)}.
+     * @param stream the stream name
+     * @return the stream info, or null if it has not been fetched yet
+     */
+    public StreamInfo getWarmStreamInfo(String stream) {
+        return requireJetStreamCache().getStreamInfo(stream);
+    }
+
+    /**
+     * Returns the consumer info from the warm JetStream cache, without a round trip.
+     * Requires {@link ApOptions.Builder#jetStreamWarmInterval(Duration)}.
+     * @param stream the stream name
+     * @param consumer the consumer name
+     * @return the consumer info, or null if it has not been fetched yet
+     */
+    public ConsumerInfo getWarmConsumerInfo(String stream, String consumer) {
+        return requireJetStreamCache().getConsumerInfo(stream, consumer);
+    }
+
+    /**
+     * Returns the account statistics from the warm JetStream cache, without a round trip.
+     * Requires {@link ApOptions.Builder#jetStreamWarmInterval(Duration)}.
+     * @return the account statistics, or null if they have not been fetched yet
+     */
+    public AccountStatistics getWarmAccountStatistics() {
+        return requireJetStreamCache().getAccountStatistics();
+    }
+
+    private ApJetStreamCache requireJetStreamCache() {
+        if (jetStreamCache == null) {
+            throw new IllegalStateException("JetStream warm cache is not enabled.");
+        }
+        return jetStreamCache;
+    }
+
+    /**
+     * Subscribe with a handler, served on the passive connection when it is connected
+     * and on the active connection otherwise. Requires {@link ApOptions.Builder#readFanOut()}.
+     * @param subject the subject
+     * @param handler the message handler
+     * @return the fan-out subscription
+     */
+    public ApFanOutSubscription subscribeFanOut(String subject, MessageHandler handler) {
+        return subscribeFanOut(subject, null, handler);
+    }
+
+    /**
+     * Subscribe with a handler in a queue group, served on the passive connection when it is connected
+     * and on the active connection otherwise. Requires {@link ApOptions.Builder#readFanOut()}.
+     * @param subject the subject
+     * @param queueName the queue group
+     * @param handler the message handler
+     * @return the fan-out subscription
+     */
+    public ApFanOutSubscription subscribeFanOut(String subject, String queueName, MessageHandler handler) {
+        if (fanOut == null) {
+            throw new IllegalStateException("Read fan out is not enabled.");
+        }
+        if (isClosing() || isClosed()) {
+            throw new IllegalStateException("Connection is Closed");
+        }
+        ApFanOutSubscription sub = new ApFanOutSubscription(this, subject, queueName, handler);
+        fanOut.subscribe(sub, fanOutTarget());
+        return sub;
+    }
+
+    /**
+     * Send a request on both the active and the passive connection, completing with whichever
+     * reply arrives first and cancelling the other. The responder may see the request twice.
+     * If the passive is not usable, or subscriptions are mirrored, which leaves the passive
+     * no sids of its own for the reply, the request is only sent on the active.
+     * @param subject the subject
+     * @param body the body
+     * @param timeout the timeout for each request
+     * @return the future reply
+     */
+    public CompletableFuture<Message> hedgedRequest(String subject, byte[] body, Duration timeout) {
+        return hedgedRequest(subject, null, body, timeout);
+    }
+
+    /**
+     * Send a request with headers on both the active and the passive connection, completing with whichever
+     * reply arrives first and cancelling the other. The responder may see the request twice.
+     * If the passive is not usable, or subscriptions are mirrored, which leaves the passive
+     * no sids of its own for the reply, the request is only sent on the active.
+     * @param subject the subject
+     * @param headers the headers
+     * @param body the body
+     * @param timeout the timeout for each request
+     * @return the future reply
+     */
+    public CompletableFuture<Message> hedgedRequest(String subject, Headers headers, byte[] body, Duration timeout) {
+        CompletableFuture<Message> onActive = requestWithTimeout(subject, headers, body, timeout);
+        NatsConnection p = passive;
+        if (subscriptionMirror != null || !isUsable(p)) {
+            return onActive;
+        }
+        CompletableFuture<Message> onPassive;
+        try {
+            onPassive = p.requestWithTimeout(subject, headers, body, timeout);
+        }
+        catch (IllegalStateException e) {
+            return onActive; // the passive closed under us
+        }
+        apStatistics.increment(ApStatistics.Counter.HEDGED_REQUESTS);
+
+        CompletableFuture<Message> first = new CompletableFuture<>();
+        onActive.whenComplete((m, t) -> hedgeCompleted(first, m, onPassive, false));
+        onPassive.whenComplete((m, t) -> hedgeCompleted(first, m, onActive, true));
+        first.whenComplete((m, t) -> {
+            if (first.isCancelled()) {
+                onActive.cancel(true);
+                onPassive.cancel(true);
+            }
+        });
+        return first;
+    }
+
+    private void hedgeCompleted(CompletableFuture<Message> first, Message m, CompletableFuture<Message> other, boolean passiveWon) {
+        if (m != null) {
+            if (first.complete(m)) {
+                other.cancel(true);
+                if (passiveWon) {
+                    apStatistics.increment(ApStatistics.Counter.HEDGED_PASSIVE_WINS);
+                }
+            }
+        }
+        else if (other.isCompletedExceptionally()) {
+            // both failed, report this one
+            other.whenComplete((m2, t) -> first.completeExceptionally(t));
+        }
+    }
+
+    /**
+     * Publish a message on both the active and the passive connection, so it gets through
+     * on whichever is faster. Subscribers see it twice. The message gets a Nats-Msg-Id header
+     * if it does not have one, so JetStream keeps one copy. If the passive is not usable,
+     * or the server does not support headers, it is only published on the active.
+     * @param subject the subject
+     * @param body the body
+     */
+    public void hedgedPublish(String subject, byte[] body) {
+        hedgedPublish(subject, null, body);
+    }
+
+    /**
+     * Publish a message with headers on both the active and the passive connection, so it gets through
+     * on whichever is faster. Subscribers see it twice. The message gets a Nats-Msg-Id header
+     * if it does not have one, so JetStream keeps one copy. If the passive is not usable,
+     * or the server does not support headers, it is only published on the active.
+     * @param subject the subject
+     * @param headers the headers
+     * @param body the body
+     */
+    public void hedgedPublish(String subject, Headers headers, byte[] body) {
+        NatsConnection p = passive;
+        ServerInfo info = getServerInfo();
+        if (!isUsable(p) || info == null || !info.isHeadersSupported()) {
+            publish(subject, headers, body);
+            return;
+        }
+        headers = withMsgId(headers);
+        publish(subject, headers, body);
+        try {
+            p.publish(subject, headers, body);
+        }
+        catch (IllegalStateException e) {
+            // the passive closed under us, or its outgoing queue is full, the active has it
+        }
+    }
+
+    /**
+     * Returns the failover statistics for this connection.
+     *
+     * @return the statistics
+     */
+    @NonNull
+    public ApStatistics getApStatistics() {
+        return apStatistics;
+    }
+
+    /**
+     * Returns the timeline of failover events for this connection,
+     * sized by {@link ApOptions.Builder#timelineSize(int)}.
+     *
+     * @return the timeline
+     */
+    @NonNull
+    public ApTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Returns the number of standby connections, including the passive.
+     * May be less than the configured standby depth while standbys are being rebuilt.
+     *
+     * @return the number of standby connections
+     */
+    public int getStandbyCount() {
+        return standbyCount();
+    }
+
     /**
      * Returns the passive connection's current status.
      *
@@ -188,7 +1857,8 @@ public class ApConnection extends NatsConnection {
      */
     @NonNull
     public Status getPassiveStatus() {
-        return passive.getStatus();
+        NatsConnection p = passive;
+        return p == null ? Status.DISCONNECTED : p.getStatus();
     }
 
     /**
@@ -200,7 +1870,8 @@ public class ApConnection extends NatsConnection {
      */
     @NonNull
     public Collection<String> getPassiveServers() {
-        return passive.getServers();
+        NatsConnection p = passive;
+        return p == null ? Collections.emptyList() : p.getServers();
     }
 
     /**
@@ -211,7 +1882,8 @@ public class ApConnection extends NatsConnection {
      */
     @NonNull
     public ServerInfo getPassiveServerInfo() {
-        return passive.getServerInfo();
+        NatsConnection p = passive;
+        return p == null ? ServerInfo.EMPTY_INFO : p.getServerInfo();
     }
 
     /**
@@ -220,7 +1892,8 @@ public class ApConnection extends NatsConnection {
      */
     @Nullable
     public String getPassiveConnectedUrl() {
-        return passive.getConnectedUrl();
+        NatsConnection p = passive;
+        return p == null ? null : p.getConnectedUrl();
     }
 
     /**
@@ -231,7 +1904,7 @@ public class ApConnection extends NatsConnection {
      * @throws InterruptedException the connection is not connected
      */
     public void passiveForceReconnect() throws IOException, InterruptedException {
-        passive.forceReconnect(ForceReconnectOptions.DEFAULT_INSTANCE);
+        requirePassive().forceReconnect(ForceReconnectOptions.DEFAULT_INSTANCE);
     }
 
     /**
@@ -244,7 +1917,7 @@ public class ApConnection extends NatsConnection {
      * @throws InterruptedException the connection is not connected
      */
     public void passiveForceReconnect(@Nullable ForceReconnectOptions options) throws IOException, InterruptedException {
-        passive.forceReconnect(options);
+        requirePassive().forceReconnect(options);
     }
 
     /**
@@ -254,6 +1927,14 @@ public class ApConnection extends NatsConnection {
      */
     @NonNull
     public Duration passiveRTT() throws IOException {
-        return passive.RTT();
+        return requirePassive().RTT();
+    }
+
+    private NatsConnection requirePassive() throws IOException {
+        NatsConnection p = passive;
+        if (p == null) {
+            throw new IOException("No Passive connection, it is being rebuilt");
+        }
+        return p;
     }
 }
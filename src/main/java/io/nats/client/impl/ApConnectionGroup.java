@@ -0,0 +1,339 @@
+package io.nats.client.impl;
+
+import io.nats.client.ConnectionListener;
+import io.nats.client.Options;
+import io.nats.client.support.NatsUri;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A group of active connections sharing a small pool of warm standby connections,
+ * instead of each holding its own passive. A member that fails takes over the data port
+ * of a pooled standby, the same way an {@link ApConnection} takes over its passive,
+ * and the group builds a replacement in the background.
+ * N members use N + pool size server connections instead of 2N.
+ */
+public class ApConnectionGroup implements AutoCloseable {
+
+    final ApOptions apOptions;
+    final int poolSize;
+    final ApPassiveServerPool groupServerPool;
+    final Options standbyOptions;
+    final ConcurrentLinkedDeque<NatsConnection> standbys;
+    final ReentrantLock standbyLock;
+    final AtomicBoolean refilling;
+    final ExecutorService refillExecutor;
+    final boolean refillExecutorIsInternal;
+    volatile boolean closed;
+
+    /**
+     * Create a group and connect its standby pool.
+     * @param apOptions the options for the members and the standbys. Members never build their own passive.
+     * @param poolSize the number of standbys to keep, at least 1
+     * @return the group
+     * @throws IOException if no standby could be connected
+     * @throws InterruptedException if interrupted while connecting
+     */
+    public static ApConnectionGroup create(ApOptions apOptions, int poolSize) throws IOException, InterruptedException {
+        ApConnectionGroup group = new ApConnectionGroup(apOptions == null ? ApOptions.builder().build() : apOptions, poolSize);
+        try {
+            group.makeStandby();
+        }
+        catch (IOException e) {
+            group.close();
+            throw new IOException("Unable to make a standby connection to NATS servers", e);
+        }
+        // not on the refill executor, where a hanging lookup would hold up rebuilding standbys
+        group.groupServerPool.startDnsCache(group.standbyOptions.getExecutor());
+        group.refill();
+        return group;
+    }
+
+    private ApConnectionGroup(ApOptions apOptions, int poolSize) {
+        this.apOptions = apOptions;
+        this.poolSize = Math.max(1, poolSize);
+        groupServerPool = new ApPassiveServerPool(
+            apOptions.options.getServerPool() == null
+                ? new NatsServerPool()
+                : apOptions.options.getServerPool(),
+            apOptions.dnsCacheTtl);
+        Options.Builder standbyBuilder = new Options.Builder(apOptions.options)
+            .connectionListener(apOptions.passiveConnectionListener)
+            .errorListener(apOptions.passiveErrorListener)
+            .serverPool(groupServerPool);
+        ApConnection.applySharedExecutors(apOptions, standbyBuilder);
+        ApConnection.applySlimStandby(apOptions, standbyBuilder, apOptions.options);
+        standbyOptions = standbyBuilder.build();
+        standbys = new ConcurrentLinkedDeque<>();
+        standbyLock = new ReentrantLock();
+        refilling = new AtomicBoolean();
+        refillExecutorIsInternal = apOptions.passiveExecutor == null && apOptions.sharedExecutors == null;
+        if (apOptions.passiveExecutor != null) {
+            refillExecutor = apOptions.passiveExecutor;
+        }
+        else if (apOptions.sharedExecutors != null) {
+            refillExecutor = apOptions.sharedExecutors.getPassiveExecutor();
+        }
+        else {
+            refillExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, Options.DEFAULT_THREAD_NAME_PREFIX + "-ap-group");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Connect a new member of the group.
+     * @return the member connection
+     * @throws IOException if the member could not connect
+     * @throws InterruptedException if interrupted while connecting
+     */
+    public ApConnection connect() throws IOException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Group is closed");
+        }
+        return ApConnection.connect(apOptions, this);
+    }
+
+    /**
+     * Returns the number of standby connections in the group's pool.
+     * May be less than the pool size while standbys are being rebuilt.
+     *
+     * @return the number of standby connections
+     */
+    public int getStandbyCount() {
+        return standbys.size();
+    }
+
+    /**
+     * Takes a connected standby for a failing member, preferring one that is not
+     * on the member's failed server, and starts building its replacement.
+     * @param failedServer the server the member was connected to, may be null
+     * @return the standby, or null if none is connected
+     */
+    NatsConnection take(NatsUri failedServer) {
+        NatsConnection taken = null;
+        standbyLock.lock();
+        try {
+            NatsConnection sameServer = null;
+            for (NatsConnection standby : standbys) {
+                if (standby.isConnected()) {
+                    if (failedServer != null && failedServer.equivalent(standby.currentServer)) {
+                        if (sameServer == null) {
+                            sameServer = standby;
+                        }
+                    }
+                    else {
+                        taken = standby;
+                        break;
+                    }
+                }
+            }
+            if (taken == null) {
+                taken = sameServer;
+            }
+            if (taken != null) {
+                standbys.remove(taken);
+            }
+        }
+        finally {
+            standbyLock.unlock();
+        }
+        if (taken != null) {
+            refreshStandbyServers();
+            refill();
+        }
+        return taken;
+    }
+
+    boolean hasConnectedStandby() {
+        for (NatsConnection standby : standbys) {
+            if (standby.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Options newStandbyOptions() {
+        if (apOptions.sharedExecutors == null || !apOptions.options.callbackExecutorIsInternal()) {
+            return standbyOptions;
+        }
+        Options.Builder builder = new Options.Builder(standbyOptions);
+        ApConnection.applyOwnCallbackExecutor(apOptions, builder);
+        return builder.build();
+    }
+
+    private void makeStandby() throws IOException, InterruptedException {
+        NatsConnection candidate = new ApStandbyConnection(newStandbyOptions());
+        candidate.addConnectionListener((conn, type) -> {
+            if (type == ConnectionListener.Events.RECONNECTED || type == ConnectionListener.Events.DISCONNECTED) {
+                refreshStandbyServers();
+            }
+            else if (type == ConnectionListener.Events.LAME_DUCK && standbys.remove(candidate)) {
+                // its server is going away, build the replacement elsewhere
+                NatsUri nuri = candidate.currentServer;
+                if (nuri != null) {
+                    groupServerPool.lameDuck(nuri);
+                }
+                refreshStandbyServers();
+                closeStandby(candidate);
+                refill();
+            }
+            else if (type == ConnectionListener.Events.CLOSED && standbys.remove(candidate)) {
+                // gave up reconnecting
+                refreshStandbyServers();
+                refill();
+            }
+        });
+        try {
+            candidate.connect(true);
+        }
+        catch (IOException e) {
+            candidate.close(false, true);
+            throw e;
+        }
+        if (!candidate.isConnected()) {
+            candidate.close(false, true);
+            throw new IOException("Unable to make a standby connection to NATS servers");
+        }
+        if (closed) {
+            candidate.close(false, true);
+            return;
+        }
+        standbys.add(candidate);
+        refreshStandbyServers();
+    }
+
+    private void closeStandby(NatsConnection standby) {
+        try {
+            refillExecutor.execute(() -> {
+                try {
+                    standby.close(false, true);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // closing, the standby is closed with the group
+        }
+    }
+
+    private void refreshStandbyServers() {
+        List<NatsUri> servers = new ArrayList<>();
+        for (NatsConnection standby : standbys) {
+            NatsUri nuri = standby.currentServer;
+            if (nuri != null) {
+                servers.add(nuri);
+            }
+        }
+        groupServerPool.setStandbyServers(servers);
+    }
+
+    /**
+     * Builds standbys on the refill executor until the pool is full,
+     * retrying with backoff until it succeeds or the group is closed.
+     */
+    private void refill() {
+        if (closed || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        executeRefill(apOptions.passiveRebuildWait.toMillis());
+    }
+
+    private void executeRefill(long waitMillis) {
+        try {
+            refillExecutor.execute(() -> refill(waitMillis));
+        }
+        catch (RejectedExecutionException e) {
+            refilling.set(false);
+        }
+    }
+
+    /**
+     * One round of building standbys. After a failed build the next round is scheduled
+     * on the scheduled executor, so the refill executor is not held while it waits.
+     * @param waitMillis the wait after a failed build
+     */
+    private void refill(long waitMillis) {
+        boolean retrying = false;
+        try {
+            while (!closed && standbys.size() < poolSize) {
+                try {
+                    makeStandby();
+                    waitMillis = apOptions.passiveRebuildWait.toMillis();
+                    continue;
+                }
+                catch (IOException e) {
+                    // the standby's own listeners have already been told why
+                }
+                long nextWaitMillis = Math.min(waitMillis * 2, apOptions.passiveRebuildMaxWait.toMillis());
+                standbyOptions.getScheduledExecutor().schedule(() -> executeRefill(nextWaitMillis),
+                    waitMillis, TimeUnit.MILLISECONDS);
+                retrying = true;
+                return;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (RejectedExecutionException e) {
+            // closing
+            return;
+        }
+        finally {
+            if (!retrying) {
+                refilling.set(false);
+            }
+        }
+
+        // a standby may have been taken after the loop checked the count
+        if (!closed && standbys.size() < poolSize) {
+            refill();
+        }
+    }
+
+    /**
+     * Close the standby pool. Members are not closed, they keep running without standbys.
+     * If interrupted, the rest of the pool is still closed, and the interrupt is kept.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        NatsConnection standby;
+        while ((standby = standbys.pollFirst()) != null) {
+            try {
+                standby.close();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (refillExecutorIsInternal) {
+            refillExecutor.shutdownNow();
+        }
+        try {
+            standbyOptions.shutdownExecutors();
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.nats.client.impl;
+
+import io.nats.client.NatsSystemClock;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Caches host resolution for the server pool the active and its standbys share.
+ * Only the first lookup of a host waits for the resolver. Once an entry is past
+ * {@link #REFRESH_AT} of its time to live it is resolved again in the background,
+ * and the cached ips are served until that finishes, so a failover never waits on DNS.
+ * A refresh that fails keeps the ips that were last resolved. A host that has never resolved
+ * is only remembered for {@link #NEGATIVE_TTL_NANOS}, so a passing DNS failure is retried soon.
+ */
+class ApDnsCache {
+    static final double REFRESH_AT = 0.75;
+    static final long NEGATIVE_TTL_NANOS = 1_000_000_000L;
+
+    private final Function<String, List<String>> resolver;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Map<String, Entry> entries;
+    private final Set<String> prefetching;
+    private volatile Executor executor;
+
+    private static final class Entry {
+        final List<String> ips;
+        final long resolvedNanos;
+        final AtomicBoolean refreshing;
+
+        Entry(List<String> ips, long resolvedNanos) {
+            this.ips = ips;
+            this.resolvedNanos = resolvedNanos;
+            refreshing = new AtomicBoolean();
+        }
+    }
+
+    /**
+     * @param resolver the lookup, returning null if the host cannot be resolved
+     * @param ttlNanos how long a resolution is good for, zero or less to not cache
+     */
+    ApDnsCache(Function<String, List<String>> resolver, long ttlNanos) {
+        this(resolver, ttlNanos, Math.min(ttlNanos, NEGATIVE_TTL_NANOS));
+    }
+
+    /**
+     * @param resolver the lookup, returning null if the host cannot be resolved
+     * @param ttlNanos how long a resolution is good for, zero or less to not cache
+     * @param negativeTtlNanos how long a host that could not be resolved is remembered
+     */
+    ApDnsCache(Function<String, List<String>> resolver, long ttlNanos, long negativeTtlNanos) {
+        this.resolver = resolver;
+        this.ttlNanos = ttlNanos;
+        this.negativeTtlNanos = negativeTtlNanos;
+        entries = new ConcurrentHashMap<>();
+        prefetching = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Set the executor refreshes run on. Until it is set, expired entries are resolved inline.
+     * @param executor the executor
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    List<String> resolve(String host) {
+        if (ttlNanos <= 0) {
+            return resolver.apply(host);
+        }
+        Entry entry = entries.get(host);
+        if (entry == null) {
+            return resolveNow(host, null).ips;
+        }
+        long age = NatsSystemClock.nanoTime() - entry.resolvedNanos;
+        if (entry.ips == null) {
+            // there is nothing to serve while it is looked up again
+            return age < negativeTtlNanos ? null : resolveNow(host, null).ips;
+        }
+        if (age >= ttlNanos * REFRESH_AT) {
+            if (!refreshAsync(host, entry) && age >= ttlNanos) {
+                return resolveNow(host, entry).ips;
+            }
+        }
+        return entry.ips;
+    }
+
+    /**
+     * Resolve a host in the background if it has never been resolved,
+     * so the first connect to it does not wait either. A host already being prefetched is not queued again.
+     * @param host the host
+     */
+    void prefetch(String host) {
+        if (ttlNanos > 0 && !entries.containsKey(host) && prefetching.add(host)) {
+            if (!refreshAsync(host, null)) {
+                prefetching.remove(host);
+            }
+        }
+    }
+
+    private boolean refreshAsync(String host, Entry entry) {
+        Executor e = executor;
+        if (e == null || (entry != null && !entry.refreshing.compareAndSet(false, true))) {
+            return e != null; // already being refreshed
+        }
+        try {
+            e.execute(() -> {
+                try {
+                    resolveNow(host, entry);
+                }
+                finally {
+                    if (entry == null) {
+                        prefetching.remove(host);
+                    }
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException ree) {
+            if (entry != null) {
+                entry.refreshing.set(false);
+            }
+            return false;
+        }
+    }
+
+    private Entry resolveNow(String host, Entry previous) {
+        List<String> ips = resolver.apply(host);
+        if (ips == null && previous != null) {
+            ips = previous.ips;
+        }
+        Entry entry = new Entry(ips, NatsSystemClock.nanoTime());
+        entries.put(host, entry);
+        return entry;
+    }
+}
@@ -0,0 +1,29 @@
+package io.nats.client.impl;
+
+/**
+ * How far apart the standby connections must be from the active connection.
+ * Each level includes the ones before it. When every server not in use is in the
+ * same failure domain as the active, a standby is still built, in the same domain.
+ */
+public enum ApFailureDomain {
+    /**
+     * Only avoid the server url the active is connected to.
+     */
+    NONE,
+
+    /**
+     * Avoid the active's server, even when it is reached by a different url.
+     */
+    SERVER,
+
+    /**
+     * Avoid servers whose host resolves to an ip of the active's host.
+     */
+    HOST,
+
+    /**
+     * Avoid servers in the active's zone, as given by the zone resolver.
+     * Without a zone resolver this is the same as {@link #HOST}.
+     */
+    ZONE
+}
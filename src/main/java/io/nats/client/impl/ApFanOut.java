@@ -0,0 +1,94 @@
+package io.nats.client.impl;
+
+import io.nats.client.Dispatcher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Places the fan-out subscriptions on the connection that should serve them,
+ * with one dispatcher per connection. A subscription on a connection that went away
+ * is moved to the target the next time the subscriptions are placed.
+ */
+class ApFanOut {
+    private final List<ApFanOutSubscription> subscriptions;
+    private final Map<NatsConnection, Dispatcher> dispatchers;
+
+    ApFanOut() {
+        subscriptions = new CopyOnWriteArrayList<>();
+        dispatchers = new ConcurrentHashMap<>();
+    }
+
+    synchronized void subscribe(ApFanOutSubscription sub, NatsConnection target) {
+        subscriptions.add(sub);
+        move(sub, target);
+    }
+
+    synchronized void unsubscribe(ApFanOutSubscription sub) {
+        if (subscriptions.remove(sub)) {
+            release(sub);
+        }
+    }
+
+    /**
+     * Move every subscription not on the target to the target.
+     * @param target the connection that should serve the subscriptions
+     */
+    synchronized void place(NatsConnection target) {
+        dispatchers.keySet().removeIf(NatsConnection::isClosed);
+        for (ApFanOutSubscription sub : subscriptions) {
+            if (sub.connection != target) {
+                move(sub, target);
+            }
+        }
+    }
+
+    /**
+     * Called when a standby's data port is taken over by the active. The standby's fan-out
+     * subscriptions were already unsubscribed on the port, before the swap, so only the
+     * bookkeeping is dropped. They are placed on the active the next time subscriptions are placed.
+     * @param promoted the standby being promoted
+     */
+    synchronized void promote(NatsConnection promoted) {
+        dispatchers.remove(promoted);
+        for (ApFanOutSubscription sub : subscriptions) {
+            if (sub.connection == promoted) {
+                sub.connection = null;
+                sub.subscription = null;
+            }
+        }
+    }
+
+    private void move(ApFanOutSubscription sub, NatsConnection target) {
+        release(sub);
+        try {
+            Dispatcher d = dispatchers.computeIfAbsent(target, NatsConnection::createDispatcher);
+            sub.subscription = sub.queueName == null
+                ? d.subscribe(sub.subject, sub.handler)
+                : d.subscribe(sub.subject, sub.queueName, sub.handler);
+            sub.connection = target;
+        }
+        catch (IllegalStateException e) {
+            // the target is closing, the subscription is placed again later
+        }
+    }
+
+    private void release(ApFanOutSubscription sub) {
+        NatsConnection c = sub.connection;
+        if (c != null && sub.subscription != null) {
+            Dispatcher d = dispatchers.get(c);
+            try {
+                if (d != null) {
+                    d.unsubscribe(sub.subscription);
+                }
+            }
+            catch (IllegalStateException e) {
+                // the old connection is closed, so is its interest
+            }
+        }
+        sub.connection = null;
+        sub.subscription = null;
+    }
+}
@@ -0,0 +1,46 @@
+package io.nats.client.impl;
+
+import io.nats.client.MessageHandler;
+import io.nats.client.Subscription;
+
+/**
+ * A subscription served on the passive connection while the passive is connected,
+ * and on the active connection otherwise. It moves between the connections by itself,
+ * so messages sent while it moves may be missed.
+ */
+public class ApFanOutSubscription {
+    final ApConnection owner;
+    final String subject;
+    final String queueName;
+    final MessageHandler handler;
+    volatile NatsConnection connection;
+    volatile Subscription subscription;
+
+    ApFanOutSubscription(ApConnection owner, String subject, String queueName, MessageHandler handler) {
+        this.owner = owner;
+        this.subject = subject;
+        this.queueName = queueName;
+        this.handler = handler;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Whether the subscription is currently served by the passive connection.
+     * @return true if it is on the passive
+     */
+    public boolean isServedByPassive() {
+        NatsConnection c = connection;
+        return c != null && c != owner;
+    }
+
+    public void unsubscribe() {
+        owner.fanOut.unsubscribe(this);
+    }
+}
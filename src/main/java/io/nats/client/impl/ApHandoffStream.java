@@ -0,0 +1,83 @@
+package io.nats.client.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The input stream of a standby's socket. A reader hands everything it read to the parser,
+ * so when the standby's port is taken over, its reader could parse past the PONG that marks
+ * the handover, into messages, or part of a message, meant for the active. While held,
+ * a read gives the reader one byte and keeps the rest, which is read before the socket again.
+ */
+class ApHandoffStream extends InputStream {
+    private final InputStream in;
+    private byte[] kept;
+    private int keptStart;
+    private int keptEnd;
+    private volatile boolean held;
+
+    ApHandoffStream(InputStream in) {
+        this.in = in;
+        kept = new byte[0];
+    }
+
+    /**
+     * @param port a data port
+     * @return the port's handoff stream, or null if it does not read through one
+     */
+    static ApHandoffStream of(DataPort port) {
+        if (port instanceof SocketDataPort && ((SocketDataPort) port).in instanceof ApHandoffStream) {
+            return (ApHandoffStream) ((SocketDataPort) port).in;
+        }
+        return null;
+    }
+
+    void hold() {
+        held = true;
+    }
+
+    void release() {
+        held = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (keptStart < keptEnd) {
+            int n = held ? 1 : Math.min(len, keptEnd - keptStart);
+            System.arraycopy(kept, keptStart, b, off, n);
+            keptStart += n;
+            return n;
+        }
+        int n = in.read(b, off, len);
+        if (n > 1 && held) {
+            // checked after the read, a read that was waiting when the stream was held is cut short too
+            if (kept.length < n - 1) {
+                kept = new byte[n - 1];
+            }
+            System.arraycopy(b, off + 1, kept, 0, n - 1);
+            keptStart = 0;
+            keptEnd = n - 1;
+            return 1;
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (keptEnd - keptStart) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
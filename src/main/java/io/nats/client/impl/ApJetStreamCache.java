@@ -0,0 +1,147 @@
+package io.nats.client.impl;
+
+import io.nats.client.JetStreamApiException;
+import io.nats.client.JetStreamManagement;
+import io.nats.client.JetStreamOptions;
+import io.nats.client.api.AccountStatistics;
+import io.nats.client.api.ConsumerInfo;
+import io.nats.client.api.StreamInfo;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps JetStream account info and the stream and consumer info for the streams the active uses,
+ * refreshed in the background over the passive connection.
+ * Streams and consumers are tracked when the active asks for their info, or when registered.
+ * Since the cache belongs to the {@link ApConnection}, it is still warm after the passive's
+ * data port is taken over. The request inbox the refreshes leave on the passive is unsubscribed
+ * before that, so its sid does not clash with the active's. Fetching stream info also warms the client's own stream info cache,
+ * which JetStream contexts use to route direct gets.
+ */
+class ApJetStreamCache {
+    // stream names and consumer names cannot contain dots
+    private static final String STREAM_INFO = "STREAM.INFO.";
+    private static final String CONSUMER_INFO = "CONSUMER.INFO.";
+    private static final int STREAM_NOT_FOUND = 10059;
+    private static final int CONSUMER_NOT_FOUND = 10014;
+
+    private final JetStreamOptions jso;
+    private final String prefix;
+    private final Map<String, Set<String>> tracked;
+    private final Map<String, StreamInfo> streams;
+    private final Map<String, ConsumerInfo> consumers;
+    private volatile AccountStatistics accountStatistics;
+
+    ApJetStreamCache(JetStreamOptions jso) {
+        this.jso = jso == null ? JetStreamOptions.DEFAULT_JS_OPTIONS : jso;
+        prefix = this.jso.getPrefix();
+        tracked = new ConcurrentHashMap<>();
+        streams = new ConcurrentHashMap<>();
+        consumers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Called for every subject the active publishes to. Only JetStream info requests are tracked.
+     * @param subject the subject
+     */
+    void observe(String subject) {
+        if (!subject.startsWith(prefix)) {
+            return;
+        }
+        if (subject.startsWith(STREAM_INFO, prefix.length())) {
+            String stream = subject.substring(prefix.length() + STREAM_INFO.length());
+            if (stream.indexOf('.') == -1) {
+                track(stream);
+            }
+        }
+        else if (subject.startsWith(CONSUMER_INFO, prefix.length())) {
+            String rest = subject.substring(prefix.length() + CONSUMER_INFO.length());
+            int dot = rest.indexOf('.');
+            if (dot > 0 && rest.indexOf('.', dot + 1) == -1) {
+                track(rest.substring(0, dot), rest.substring(dot + 1));
+            }
+        }
+    }
+
+    void track(String stream, String... consumerNames) {
+        Set<String> names = tracked.computeIfAbsent(stream, s -> ConcurrentHashMap.newKeySet());
+        for (String consumer : consumerNames) {
+            names.add(consumer);
+        }
+    }
+
+    boolean isTracked(String stream, String consumer) {
+        Set<String> names = tracked.get(stream);
+        return names != null && (consumer == null || names.contains(consumer));
+    }
+
+    /**
+     * Refresh everything tracked over the passive. A stream or consumer that no longer exists
+     * stops being tracked. Gives up on the first I/O error, the next refresh will try again.
+     * @param passive the passive connection
+     */
+    void refresh(NatsConnection passive) {
+        if (passive == null || !passive.isConnected() || tracked.isEmpty()) {
+            return;
+        }
+        try {
+            JetStreamManagement jsm = passive.jetStreamManagement(jso);
+            accountStatistics = jsm.getAccountStatistics();
+            for (Map.Entry<String, Set<String>> entry : tracked.entrySet()) {
+                String stream = entry.getKey();
+                try {
+                    streams.put(stream, jsm.getStreamInfo(stream));
+                }
+                catch (JetStreamApiException e) {
+                    if (e.getApiErrorCode() == STREAM_NOT_FOUND) {
+                        forget(stream);
+                    }
+                    continue;
+                }
+                for (String consumer : entry.getValue()) {
+                    try {
+                        consumers.put(key(stream, consumer), jsm.getConsumerInfo(stream, consumer));
+                    }
+                    catch (JetStreamApiException e) {
+                        if (e.getApiErrorCode() == CONSUMER_NOT_FOUND) {
+                            entry.getValue().remove(consumer);
+                            consumers.remove(key(stream, consumer));
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException | JetStreamApiException e) {
+            // the passive's own listeners have already been told why
+        }
+    }
+
+    private void forget(String stream) {
+        Set<String> names = tracked.remove(stream);
+        streams.remove(stream);
+        if (names != null) {
+            for (String consumer : names) {
+                consumers.remove(key(stream, consumer));
+            }
+        }
+    }
+
+    StreamInfo getStreamInfo(String stream) {
+        return streams.get(stream);
+    }
+
+    ConsumerInfo getConsumerInfo(String stream, String consumer) {
+        return consumers.get(key(stream, consumer));
+    }
+
+    AccountStatistics getAccountStatistics() {
+        return accountStatistics;
+    }
+
+    private static String key(String stream, String consumer) {
+        return stream + "." + consumer;
+    }
+}
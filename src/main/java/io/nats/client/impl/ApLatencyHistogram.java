@@ -0,0 +1,121 @@
+package io.nats.client.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with log-linear buckets, in the style of an HDR histogram.
+ * Each power of 2 range is split into 16 linear sub buckets, so a recorded value
+ * is reported within about 6% of its true value. Recording never allocates.
+ * Values are in nanoseconds and are capped at about 2 hours.
+ */
+public class ApLatencyHistogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_MAGNITUDE = 42;
+    static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+    static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong total;
+    private final AtomicLong max;
+
+    public ApLatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        total = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketHighestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a value
+     * @param nanos the value in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * The number of values recorded
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The largest value recorded
+     * @return the max in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The mean of the values recorded
+     * @return the mean in nanoseconds, 0 if nothing was recorded
+     */
+    public long getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : total.get() / c;
+    }
+
+    /**
+     * The value at a percentile, for instance 50, 99 or 99.9
+     * @param percentile the percentile, between 0 and 100
+     * @return the value in nanoseconds, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        double p = Math.max(0, Math.min(100, percentile));
+        long target = Math.max(1, (long) Math.ceil(p / 100 * c));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketHighestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() +
+            ", mean=" + getMean() +
+            ", p50=" + getValueAtPercentile(50) +
+            ", p99=" + getValueAtPercentile(99) +
+            ", p999=" + getValueAtPercentile(99.9) +
+            ", max=" + getMax();
+    }
+}
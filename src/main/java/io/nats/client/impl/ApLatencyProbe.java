@@ -0,0 +1,79 @@
+package io.nats.client.impl;
+
+import io.nats.client.NatsSystemClock;
+import io.nats.client.support.NatsUri;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+
+/**
+ * Measures the latency to each server in the pool that the active is not using,
+ * as the time it takes to open a TCP connection, which is about one round trip.
+ * The passive's server is measured the same way, so it is never compared with
+ * a NATS RTT, which also includes the time the server takes to answer a PING.
+ */
+class ApLatencyProbe {
+    private final ApPassiveServerPool pool;
+    private final int connectTimeoutMillis;
+
+    ApLatencyProbe(ApPassiveServerPool pool, int connectTimeoutMillis) {
+        this.pool = pool;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    void probe() {
+        NatsUri active = pool.activeServerRef.get();
+        for (String server : pool.getServerList()) {
+            NatsUri nuri;
+            try {
+                nuri = new NatsUri(server);
+            }
+            catch (URISyntaxException e) {
+                continue;
+            }
+            if (active == null || !nuri.equivalent(active)) {
+                pool.recordLatency(nuri, connectTime(nuri, connectTimeoutMillis));
+            }
+        }
+    }
+
+    /**
+     * @param nuri the server
+     * @param connectTimeoutMillis the connect timeout
+     * @return the time to open a TCP connection, Long.MAX_VALUE if it could not be opened
+     */
+    static long connectTime(NatsUri nuri, int connectTimeoutMillis) {
+        try (Socket socket = new Socket()) {
+            long start = NatsSystemClock.nanoTime();
+            socket.connect(new InetSocketAddress(nuri.getHost(), nuri.getPort()), connectTimeoutMillis);
+            return NatsSystemClock.nanoTime() - start;
+        }
+        catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Whether the passive should be replaced by a standby on a faster server.
+     * @param passive the passive
+     * @param margin how much faster the other server must be, as a fraction of the passive's server's latency
+     * @return true if there is a faster server by at least the margin
+     */
+    boolean shouldRotate(NatsConnection passive, double margin) {
+        if (passive == null || !passive.isConnected() || passive.currentServer == null) {
+            return false;
+        }
+        Long current = pool.getLatency(passive.currentServer);
+        NatsUri fastest = pool.getFastestAvailableServer();
+        if (current == null || fastest == null) {
+            return false;
+        }
+        Long fastestNanos = pool.getLatency(fastest);
+        if (fastestNanos == null || fastestNanos == Long.MAX_VALUE) {
+            return false;
+        }
+        return current == Long.MAX_VALUE || fastestNanos < current * (1 - margin);
+    }
+}
@@ -2,18 +2,88 @@ package io.nats.client.impl;
 
 import io.nats.client.ConnectionListener;
 import io.nats.client.ErrorListener;
+import io.nats.client.JetStreamOptions;
+import io.nats.client.MessageHandler;
 import io.nats.client.Options;
+import io.nats.client.api.ServerInfo;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 
 public class ApOptions {
 
+    public static final Duration DEFAULT_PASSIVE_REBUILD_WAIT = Duration.ofMillis(100);
+    public static final Duration DEFAULT_PASSIVE_REBUILD_MAX_WAIT = Duration.ofSeconds(5);
+    public static final int DEFAULT_STANDBY_DEPTH = 1;
+    public static final double DEFAULT_LATENCY_ROTATE_MARGIN = 0.25;
+    public static final Duration DEFAULT_HEALTH_MAX_RTT = Duration.ofMillis(500);
+    public static final int SLIM_BUFFER_SIZE = 4 * 1024;
+    public static final int DEFAULT_TIMELINE_SIZE = 256;
+    public static final Duration DEFAULT_DNS_CACHE_TTL = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_SWITCHOVER_WINDOW = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_PORT_RELEASE_TIMEOUT = Duration.ofMillis(500);
+
     public final Options options;
     public final ConnectionListener passiveConnectionListener;
     public final ErrorListener passiveErrorListener;
+    public final Duration passiveRebuildWait;
+    public final Duration passiveRebuildMaxWait;
+    public final ExecutorService passiveExecutor;
+    public final boolean mirrorSubscriptions;
+    public final ApStatisticsSink statisticsSink;
+    public final int standbyDepth;
+    public final Duration latencyProbeInterval;
+    public final double latencyRotateMargin;
+    public final ApFailureDomain failureDomain;
+    public final Function<ServerInfo, String> zoneResolver;
+    public final Duration healthCheckInterval;
+    public final Duration healthMaxRtt;
+    public final int replayBufferSize;
+    public final boolean readFanOut;
+    public final int failoverRaceWidth;
+    public final Duration connectRaceStagger;
+    public final ApSharedExecutors sharedExecutors;
+    public final boolean slimStandbys;
+    public final Duration jetStreamWarmInterval;
+    public final JetStreamOptions jetStreamWarmOptions;
+    public final boolean consumerContinuity;
+    public final int timelineSize;
+    public final Duration dnsCacheTtl;
+    public final Duration switchoverMargin;
+    public final Duration switchoverWindow;
+    public final Duration portReleaseTimeout;
 
     public ApOptions(Builder b) {
         this.options = b.options;
         this.passiveConnectionListener = b.passiveConnectionListener;
         this.passiveErrorListener = b.passiveErrorListener;
+        this.passiveRebuildWait = b.passiveRebuildWait;
+        this.passiveRebuildMaxWait = b.passiveRebuildMaxWait;
+        this.passiveExecutor = b.passiveExecutor;
+        this.mirrorSubscriptions = b.mirrorSubscriptions;
+        this.statisticsSink = b.statisticsSink;
+        this.standbyDepth = b.standbyDepth;
+        this.latencyProbeInterval = b.latencyProbeInterval;
+        this.latencyRotateMargin = b.latencyRotateMargin;
+        this.failureDomain = b.failureDomain;
+        this.zoneResolver = b.zoneResolver;
+        this.healthCheckInterval = b.healthCheckInterval;
+        this.healthMaxRtt = b.healthMaxRtt;
+        this.replayBufferSize = b.replayBufferSize;
+        this.readFanOut = b.readFanOut;
+        this.failoverRaceWidth = b.failoverRaceWidth;
+        this.connectRaceStagger = b.connectRaceStagger;
+        this.sharedExecutors = b.sharedExecutors;
+        this.slimStandbys = b.slimStandbys;
+        this.jetStreamWarmInterval = b.jetStreamWarmInterval;
+        this.jetStreamWarmOptions = b.jetStreamWarmOptions;
+        this.consumerContinuity = b.consumerContinuity;
+        this.timelineSize = b.timelineSize;
+        this.dnsCacheTtl = b.dnsCacheTtl;
+        this.switchoverMargin = b.switchoverMargin;
+        this.switchoverWindow = b.switchoverWindow;
+        this.portReleaseTimeout = b.portReleaseTimeout;
     }
 
     public static Builder builder() {
@@ -28,6 +98,32 @@ public class ApOptions {
         Options options;
         ConnectionListener passiveConnectionListener;
         ErrorListener passiveErrorListener;
+        Duration passiveRebuildWait = DEFAULT_PASSIVE_REBUILD_WAIT;
+        Duration passiveRebuildMaxWait = DEFAULT_PASSIVE_REBUILD_MAX_WAIT;
+        ExecutorService passiveExecutor;
+        boolean mirrorSubscriptions;
+        ApStatisticsSink statisticsSink;
+        int standbyDepth = DEFAULT_STANDBY_DEPTH;
+        Duration latencyProbeInterval;
+        double latencyRotateMargin = DEFAULT_LATENCY_ROTATE_MARGIN;
+        ApFailureDomain failureDomain = ApFailureDomain.NONE;
+        Function<ServerInfo, String> zoneResolver;
+        Duration healthCheckInterval;
+        Duration healthMaxRtt = DEFAULT_HEALTH_MAX_RTT;
+        int replayBufferSize;
+        boolean readFanOut;
+        int failoverRaceWidth;
+        Duration connectRaceStagger;
+        ApSharedExecutors sharedExecutors;
+        boolean slimStandbys;
+        Duration jetStreamWarmInterval;
+        JetStreamOptions jetStreamWarmOptions;
+        boolean consumerContinuity;
+        int timelineSize = DEFAULT_TIMELINE_SIZE;
+        Duration dnsCacheTtl = DEFAULT_DNS_CACHE_TTL;
+        Duration switchoverMargin;
+        Duration switchoverWindow = DEFAULT_SWITCHOVER_WINDOW;
+        Duration portReleaseTimeout = DEFAULT_PORT_RELEASE_TIMEOUT;
 
         public Builder() {}
 
@@ -36,6 +132,32 @@ public class ApOptions {
                 this.options = new Options.Builder(ap.options).build();
                 this.passiveConnectionListener = ap.passiveConnectionListener;
                 this.passiveErrorListener = ap.passiveErrorListener;
+                this.passiveRebuildWait = ap.passiveRebuildWait;
+                this.passiveRebuildMaxWait = ap.passiveRebuildMaxWait;
+                this.passiveExecutor = ap.passiveExecutor;
+                this.mirrorSubscriptions = ap.mirrorSubscriptions;
+                this.statisticsSink = ap.statisticsSink;
+                this.standbyDepth = ap.standbyDepth;
+                this.latencyProbeInterval = ap.latencyProbeInterval;
+                this.latencyRotateMargin = ap.latencyRotateMargin;
+                this.failureDomain = ap.failureDomain;
+                this.zoneResolver = ap.zoneResolver;
+                this.healthCheckInterval = ap.healthCheckInterval;
+                this.healthMaxRtt = ap.healthMaxRtt;
+                this.replayBufferSize = ap.replayBufferSize;
+                this.readFanOut = ap.readFanOut;
+                this.failoverRaceWidth = ap.failoverRaceWidth;
+                this.connectRaceStagger = ap.connectRaceStagger;
+                this.sharedExecutors = ap.sharedExecutors;
+                this.slimStandbys = ap.slimStandbys;
+                this.jetStreamWarmInterval = ap.jetStreamWarmInterval;
+                this.jetStreamWarmOptions = ap.jetStreamWarmOptions;
+                this.consumerContinuity = ap.consumerContinuity;
+                this.timelineSize = ap.timelineSize;
+                this.dnsCacheTtl = ap.dnsCacheTtl;
+                this.switchoverMargin = ap.switchoverMargin;
+                this.switchoverWindow = ap.switchoverWindow;
+                this.portReleaseTimeout = ap.portReleaseTimeout;
             }
         }
 
@@ -54,6 +176,325 @@ public class ApOptions {
             return this;
         }
 
+        /**
+         * The initial wait between attempts to build a replacement passive connection
+         * after a failover. The wait doubles after each failed attempt, up to the max wait.
+         * @param passiveRebuildWait the initial wait
+         * @return the builder
+         */
+        public Builder passiveRebuildWait(Duration passiveRebuildWait) {
+            this.passiveRebuildWait = passiveRebuildWait == null ? DEFAULT_PASSIVE_REBUILD_WAIT : passiveRebuildWait;
+            return this;
+        }
+
+        /**
+         * The longest wait between attempts to build a replacement passive connection.
+         * @param passiveRebuildMaxWait the max wait
+         * @return the builder
+         */
+        public Builder passiveRebuildMaxWait(Duration passiveRebuildMaxWait) {
+            this.passiveRebuildMaxWait = passiveRebuildMaxWait == null ? DEFAULT_PASSIVE_REBUILD_MAX_WAIT : passiveRebuildMaxWait;
+            return this;
+        }
+
+        /**
+         * The executor used to build replacement passive connections in the background.
+         * If not supplied, each connection makes its own single thread executor
+         * and shuts it down on close. A supplied executor is never shut down by the connection.
+         * @param passiveExecutor the executor
+         * @return the builder
+         */
+        public Builder passiveExecutor(ExecutorService passiveExecutor) {
+            this.passiveExecutor = passiveExecutor;
+            return this;
+        }
+
+        /**
+         * Register the active connection's subscriptions on the passive connection ahead of time,
+         * so a failover does not have to resend them. Messages the passive receives for
+         * those subscriptions are dropped, so this costs the inbound bandwidth of the subscriptions
+         * a second time.
+         * @return the builder
+         */
+        public Builder mirrorSubscriptions() {
+            this.mirrorSubscriptions = true;
+            return this;
+        }
+
+        /**
+         * A sink that receives failover timings and counters as they are recorded.
+         * @param statisticsSink the sink
+         * @return the builder
+         */
+        public Builder statisticsSink(ApStatisticsSink statisticsSink) {
+            this.statisticsSink = statisticsSink;
+            return this;
+        }
+
+        /**
+         * The number of warm standby connections to keep, each to a different server
+         * when there are enough servers. The first standby is the passive connection.
+         * The default is 1, values less than 1 are treated as 1.
+         * @param standbyDepth the number of standby connections
+         * @return the builder
+         */
+        public Builder standbyDepth(int standbyDepth) {
+            this.standbyDepth = Math.max(1, standbyDepth);
+            return this;
+        }
+
+        /**
+         * Turn on latency aware passive selection. Every interval the servers are probed,
+         * each by the time it takes to open a TCP connection to it.
+         * Standbys are built against the fastest server not already in use,
+         * and the passive is replaced when a server faster by the rotate margin is found.
+         * Null or zero, the default, turns it off.
+         * @param latencyProbeInterval the interval
+         * @return the builder
+         */
+        public Builder latencyProbeInterval(Duration latencyProbeInterval) {
+            this.latencyProbeInterval = latencyProbeInterval;
+            return this;
+        }
+
+        /**
+         * How much faster another server must be before the passive is replaced, as a fraction
+         * of the latency to the passive's server. The default, 0.25, replaces the passive when
+         * another server is at least a quarter faster.
+         * @param latencyRotateMargin the margin, from 0 to 1
+         * @return the builder
+         */
+        public Builder latencyRotateMargin(double latencyRotateMargin) {
+            this.latencyRotateMargin = Math.min(1, Math.max(0, latencyRotateMargin));
+            return this;
+        }
+
+        /**
+         * Keep standbys out of the active's failure domain when another server is available.
+         * The default is {@link ApFailureDomain#NONE}.
+         * @param failureDomain the failure domain to avoid
+         * @return the builder
+         */
+        public Builder failureDomain(ApFailureDomain failureDomain) {
+            this.failureDomain = failureDomain == null ? ApFailureDomain.NONE : failureDomain;
+            return this;
+        }
+
+        /**
+         * Gives the zone of a server from its server info, for instance from its name or cluster,
+         * used with {@link ApFailureDomain#ZONE}. A null zone is never the same as another zone.
+         * @param zoneResolver the zone resolver
+         * @return the builder
+         */
+        public Builder zoneResolver(Function<ServerInfo, String> zoneResolver) {
+            this.zoneResolver = zoneResolver;
+            return this;
+        }
+
+        /**
+         * Turn on standby health checks. Every interval each standby is PINGed.
+         * A standby that is not connected, does not answer, or whose average RTT is over
+         * the health max RTT is replaced, and is never failed over to.
+         * Null or zero, the default, turns it off.
+         * @param healthCheckInterval the interval
+         * @return the builder
+         */
+        public Builder healthCheckInterval(Duration healthCheckInterval) {
+            this.healthCheckInterval = healthCheckInterval;
+            return this;
+        }
+
+        /**
+         * The average RTT above which a standby is unhealthy.
+         * @param healthMaxRtt the max RTT
+         * @return the builder
+         */
+        public Builder healthMaxRtt(Duration healthMaxRtt) {
+            this.healthMaxRtt = healthMaxRtt == null ? DEFAULT_HEALTH_MAX_RTT : healthMaxRtt;
+            return this;
+        }
+
+        /**
+         * Keep up to this many of the active's publishes until the server acknowledges them,
+         * and publish them again after a failover. Only plain publishes are kept, not requests
+         * or anything on a $JS. or $SYS. subject, such as acks and pull requests. Each kept
+         * publish gets a Nats-Msg-Id header if it does not have one, so JetStream can drop
+         * the duplicates. Only what was already written to the old server is published again,
+         * ahead of what was still queued, so plain subscribers only see a publish twice
+         * if it reached the server but the acknowledgement was lost. The data array is kept,
+         * not copied, so it must not be changed after publishing. Zero, the default, turns it off.
+         * @param replayBufferSize the number of publishes to keep
+         * @return the builder
+         */
+        public Builder replayBufferSize(int replayBufferSize) {
+            this.replayBufferSize = Math.max(0, replayBufferSize);
+            return this;
+        }
+
+        /**
+         * Allow subscriptions made with {@link ApConnection#subscribeFanOut(String, MessageHandler)}
+         * to be served on the passive connection, so inbound messages are split across
+         * two sockets and two reader threads. The passive's sids would clash with
+         * mirrored ones, so this cannot be used with {@link #mirrorSubscriptions()}.
+         * @return the builder
+         */
+        public Builder readFanOut() {
+            this.readFanOut = true;
+            return this;
+        }
+
+        /**
+         * When the active fails and no standby is usable, connect to up to this many servers
+         * not in use at the same time, and take over the first to finish the handshake.
+         * Zero, the default, does a regular reconnect instead.
+         * @param failoverRaceWidth the number of servers to race
+         * @return the builder
+         */
+        public Builder failoverRaceWidth(int failoverRaceWidth) {
+            this.failoverRaceWidth = Math.max(0, failoverRaceWidth);
+            return this;
+        }
+
+        /**
+         * Before the initial connect, connect to every server, each one this much later
+         * than the one before, until two servers have connected. The active connects
+         * to the fastest and the passive to the next, so unreachable bootstrap servers,
+         * and servers that accept the connection but fail the handshake or authentication,
+         * do not each cost a connection timeout. The race connections are closed, so
+         * the winners are connected to twice. Null, the default, connects
+         * to the servers in order.
+         * @param connectRaceStagger the delay between starting each server's race
+         * @return the builder
+         */
+        public Builder connectRaceStagger(Duration connectRaceStagger) {
+            this.connectRaceStagger = connectRaceStagger;
+            return this;
+        }
+
+        /**
+         * Run the active and standby connections on shared executors, which can also be shared
+         * with other connections, instead of each connection making its own.
+         * Executors set on the options themselves still win, as does the passive executor.
+         * @param sharedExecutors the shared executors
+         * @return the builder
+         */
+        public Builder sharedExecutors(ApSharedExecutors sharedExecutors) {
+            this.sharedExecutors = sharedExecutors;
+            return this;
+        }
+
+        /**
+         * Build standby connections with a small read and write buffer, see {@link #SLIM_BUFFER_SIZE}.
+         * An idle standby never uses more. On failover only the standby's data port is taken over,
+         * so the promoted connection runs on the active's full size reader and writer.
+         * Socket buffers are left alone, since shrinking them at connect time would limit
+         * the TCP window after promotion. The outgoing queue keeps the active's limit, since it
+         * holds nothing while idle, and a shorter one would only make hedged publishes,
+         * mirrored subscriptions and replies from the passive overflow.
+         * @return the builder
+         */
+        public Builder slimStandbys() {
+            this.slimStandbys = true;
+            return this;
+        }
+
+        /**
+         * Keep a warm cache of JetStream account info, and of the stream and consumer info
+         * the active asks for, refreshed over the passive every interval.
+         * The requests use the passive's own request inbox, whose sid would clash
+         * with mirrored ones, so this cannot be used with {@link #mirrorSubscriptions()}.
+         * Null or zero, the default, turns it off.
+         * @param jetStreamWarmInterval the interval
+         * @return the builder
+         */
+        public Builder jetStreamWarmInterval(Duration jetStreamWarmInterval) {
+            this.jetStreamWarmInterval = jetStreamWarmInterval;
+            return this;
+        }
+
+        /**
+         * The JetStream options used to track and refresh the warm cache,
+         * needed when the active uses a domain or a custom prefix.
+         * @param jetStreamWarmOptions the JetStream options
+         * @return the builder
+         */
+        public Builder jetStreamWarmOptions(JetStreamOptions jetStreamWarmOptions) {
+            this.jetStreamWarmOptions = jetStreamWarmOptions;
+            return this;
+        }
+
+        /**
+         * Track the active's outstanding JetStream pull requests, and send the ones still open
+         * again right after a failover or reconnect, with what is left of their batch and expiry.
+         * Pull and ordered consumers then keep receiving without waiting for their heartbeat alarm.
+         * @return the builder
+         */
+        public Builder consumerContinuity() {
+            this.consumerContinuity = true;
+            return this;
+        }
+
+        /**
+         * The number of failover events kept in the connection's timeline,
+         * see {@link ApConnection#getTimeline()}. Zero turns it off.
+         * The default is {@link #DEFAULT_TIMELINE_SIZE}.
+         * @param timelineSize the number of events
+         * @return the builder
+         */
+        public Builder timelineSize(int timelineSize) {
+            this.timelineSize = Math.max(0, timelineSize);
+            return this;
+        }
+
+        /**
+         * How long host resolutions are cached by the server pool the active and its standbys share.
+         * Entries are refreshed in the background before they expire, so a failover never waits on DNS.
+         * Zero turns the cache off. The default is {@link #DEFAULT_DNS_CACHE_TTL}.
+         * @param dnsCacheTtl the time to live
+         * @return the builder
+         */
+        public Builder dnsCacheTtl(Duration dnsCacheTtl) {
+            this.dnsCacheTtl = dnsCacheTtl == null ? Duration.ZERO : dnsCacheTtl;
+            return this;
+        }
+
+        /**
+         * Turn on automatic switchover. The active's and the passive's RTTs are sampled,
+         * and when the active stays slower than the passive by more than the margin
+         * for the whole switchover window, the passive is promoted, see {@link ApConnection#switchover()}.
+         * Null or zero, the default, turns it off.
+         * @param switchoverMargin the margin
+         * @return the builder
+         */
+        public Builder switchoverMargin(Duration switchoverMargin) {
+            this.switchoverMargin = switchoverMargin;
+            return this;
+        }
+
+        /**
+         * How long the active must stay slower than the passive before an automatic switchover.
+         * The default is {@link #DEFAULT_SWITCHOVER_WINDOW}.
+         * @param switchoverWindow the window
+         * @return the builder
+         */
+        public Builder switchoverWindow(Duration switchoverWindow) {
+            this.switchoverWindow = switchoverWindow == null ? DEFAULT_SWITCHOVER_WINDOW : switchoverWindow;
+            return this;
+        }
+
+        /**
+         * How long a failover waits for a standby to let go of its data port before taking it over,
+         * and for the active's writer to stop on its old port. If either has not stopped by then,
+         * the standby is closed and the active reconnects instead.
+         * The default is {@link #DEFAULT_PORT_RELEASE_TIMEOUT}.
+         * @param portReleaseTimeout the timeout
+         * @return the builder
+         */
+        public Builder portReleaseTimeout(Duration portReleaseTimeout) {
+            this.portReleaseTimeout = portReleaseTimeout == null ? DEFAULT_PORT_RELEASE_TIMEOUT : portReleaseTimeout;
+            return this;
+        }
+
         public ApOptions build() {
             if (options == null) {
                 options = new Options.Builder().build();
@@ -61,6 +502,15 @@ public class ApOptions {
             if (passiveErrorListener == null) {
                 passiveErrorListener = new ErrorListener() {};
             }
+            if (readFanOut && mirrorSubscriptions) {
+                throw new IllegalArgumentException("Read fan out cannot be used with mirrored subscriptions.");
+            }
+            if (jetStreamWarmInterval != null && !jetStreamWarmInterval.isZero() && mirrorSubscriptions) {
+                throw new IllegalArgumentException("A JetStream warm cache cannot be used with mirrored subscriptions.");
+            }
+            if (passiveRebuildMaxWait.compareTo(passiveRebuildWait) < 0) {
+                passiveRebuildMaxWait = passiveRebuildWait;
+            }
             return new ApOptions(this);
         }
     }
@@ -1,47 +1,303 @@
 package io.nats.client.impl;
 
+import io.nats.client.NatsSystemClock;
 import io.nats.client.Options;
 import io.nats.client.ServerPool;
 import io.nats.client.support.NatsUri;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
 
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The server pool shared by the active and its standbys, handing out servers that are not already in use.
+ * When it wraps a {@link NatsServerPool}, servers are handed out from a ranking of the wrapped pool's
+ * server list, kept in a sorted concurrent set: servers that are not in the active's failure domain
+ * and whose circuit breaker is closed first, see {@link ApServerHealth}, then by health and latency.
+ * A server is moved within the ranking as soon as its latency or health changes, and the whole ranking
+ * is only rebuilt when the server list changes, or once it is {@link #RANK_MAX_AGE_NANOS} old.
+ * So picking a server never rotates the wrapped pool, and only steps over the servers that are
+ * in use or excluded. Any other pool is rotated past the servers in use instead.
+ */
 public class ApPassiveServerPool implements ServerPool {
+    // penalties decay, so the order can drift without any new score
+    static final long RANK_MAX_AGE_NANOS = 1_000_000_000L;
+
     final ServerPool pool;
     final AtomicReference<NatsUri> activeServerRef;
+    final AtomicReference<List<NatsUri>> standbyServersRef;
+    final Map<NatsUri, Long> latencies;
+    final Set<String> sameDomainServers;
+    final AtomicReference<Set<String>> activeIpsRef;
+    final ApServerHealth health;
+    final AtomicReference<Ranking> rankingRef;
+    final AtomicReference<NatsUri[]> serversRef;
+    final Map<String, NatsUri> nuris;
+    final ApDnsCache dnsCache;
+    private final ReentrantLock serversLock;
+
+    static final int TIER_AVAILABLE = 0;
+    static final int TIER_SAME_DOMAIN = 1;
+    static final int TIER_BREAKER_OPEN = 2;
+
+    /**
+     * A server's place in the ranking. The tiers are the fallback order when nothing better is left.
+     * Within the open breaker tier, the breaker that closes first comes first.
+     */
+    static final class Rank {
+        final NatsUri nuri;
+        final int tier;
+        final long score;     // when the breaker closes, or otherwise the whole failures
+        final long latency;
+        final int position;   // the wrapped pool's (possibly randomized) order breaks ties
+
+        Rank(NatsUri nuri, int tier, long score, long latency, int position) {
+            this.nuri = nuri;
+            this.tier = tier;
+            this.score = score;
+            this.latency = latency;
+            this.position = position;
+        }
+    }
+
+    static final Comparator<Rank> RANK_ORDER = Comparator.<Rank>comparingInt(r -> r.tier)
+        .thenComparingLong(r -> r.score)
+        .thenComparingLong(r -> r.latency)
+        .thenComparingInt(r -> r.position);
+
+    static final class Ranking {
+        final NavigableSet<Rank> ranks;
+        final Map<String, Rank> byKey;
+        final long builtNanos;
+
+        Ranking(long builtNanos) {
+            ranks = new ConcurrentSkipListSet<>(RANK_ORDER);
+            byKey = new ConcurrentHashMap<>();
+            this.builtNanos = builtNanos;
+        }
+    }
 
     public ApPassiveServerPool(ServerPool pool) {
+        this(pool, ApOptions.DEFAULT_DNS_CACHE_TTL);
+    }
+
+    /**
+     * @param pool the pool to wrap
+     * @param dnsCacheTtl how long host resolutions are cached, zero to not cache
+     */
+    public ApPassiveServerPool(ServerPool pool, Duration dnsCacheTtl) {
         this.pool = pool;
         activeServerRef = new AtomicReference<>();
+        standbyServersRef = new AtomicReference<>(Collections.emptyList());
+        latencies = new ConcurrentHashMap<>();
+        sameDomainServers = ConcurrentHashMap.newKeySet();
+        activeIpsRef = new AtomicReference<>(Collections.emptySet());
+        health = new ApServerHealth();
+        rankingRef = new AtomicReference<>();
+        serversRef = new AtomicReference<>();
+        nuris = new ConcurrentHashMap<>();
+        serversLock = new ReentrantLock();
+        dnsCache = new ApDnsCache(host -> pool.resolveHostToIps(host, false, true),
+            dnsCacheTtl == null ? 0 : dnsCacheTtl.toNanos());
     }
 
     public void setActiveServer(NatsUri activeNuri) {
         activeServerRef.set(activeNuri);
     }
 
+    /**
+     * Set the servers the standby connections are connected to,
+     * so they are skipped along with the active server.
+     * @param standbyNuris the standby servers
+     */
+    public void setStandbyServers(List<NatsUri> standbyNuris) {
+        standbyServersRef.set(standbyNuris == null ? Collections.emptyList() : standbyNuris);
+    }
+
+    boolean isInUse(NatsUri nuri) {
+        NatsUri active = activeServerRef.get();
+        if (active != null && nuri.equivalent(active)) {
+            return true;
+        }
+        for (NatsUri standby : standbyServersRef.get()) {
+            if (nuri.equivalent(standby)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the latest measured latency to a server. Once latencies are known,
+     * the fastest server that is not in use is preferred.
+     * @param nuri the server
+     * @param nanos the latency in nanoseconds, Long.MAX_VALUE if the server could not be reached
+     */
+    public void recordLatency(NatsUri nuri, long nanos) {
+        latencies.put(nuri, nanos);
+        rerank(nuri);
+    }
+
+    /**
+     * Forget every recorded latency, so servers are no longer preferred by latency.
+     */
+    public void clearLatencies() {
+        latencies.clear();
+        rankingRef.set(null);
+    }
+
+    /**
+     * The last latency recorded for a server
+     * @param nuri the server
+     * @return the latency in nanoseconds, or null if it has not been measured
+     */
+    public @Nullable Long getLatency(NatsUri nuri) {
+        Long nanos = latencies.get(nuri);
+        if (nanos == null) {
+            for (Map.Entry<NatsUri, Long> entry : latencies.entrySet()) {
+                if (entry.getKey().equivalent(nuri)) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * The reachable server with the lowest recorded latency that is not in use
+     * and not in the active's failure domain.
+     * @return the server, or null if there are no latencies or every server is in use
+     */
+    public @Nullable NatsUri getFastestAvailableServer() {
+        NatsUri fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        for (Map.Entry<NatsUri, Long> entry : latencies.entrySet()) {
+            if (entry.getValue() < fastestNanos && !isInUse(entry.getKey()) && !isSameFailureDomain(entry.getKey())) {
+                fastest = entry.getKey();
+                fastestNanos = entry.getValue();
+            }
+        }
+        return fastest;
+    }
+
+    private boolean nothingInUse() {
+        return activeServerRef.get() == null && standbyServersRef.get().isEmpty();
+    }
+
+    /**
+     * Start a new failure domain for the active server. Servers learned to be in the
+     * previous active's domain are forgotten.
+     * @param activeIps the resolved ips of the active server's host, empty to not compare hosts
+     */
+    public void setActiveFailureDomain(Collection<String> activeIps) {
+        activeIpsRef.set(activeIps == null ? Collections.emptySet() : new HashSet<>(activeIps));
+        sameDomainServers.clear();
+        rankingRef.set(null);
+    }
+
+    /**
+     * Remember that a server turned out to be in the same failure domain as the active,
+     * for instance once its server info is known.
+     * @param nuri the server
+     */
+    public void markSameFailureDomain(NatsUri nuri) {
+        sameDomainServers.add(ApServerHealth.key(nuri));
+        rerank(nuri);
+    }
+
+    /**
+     * Whether a server is in the same failure domain as the active,
+     * either because it was marked, or because its host resolves to one of the active's ips.
+     * @param nuri the server
+     * @return true if it is in the same failure domain
+     */
+    public boolean isSameFailureDomain(NatsUri nuri) {
+        if (sameDomainServers.contains(ApServerHealth.key(nuri))) {
+            return true;
+        }
+        Set<String> activeIps = activeIpsRef.get();
+        if (activeIps.isEmpty()) {
+            return false;
+        }
+        List<String> ips = nuri.hostIsIpAddress() ? null : resolveHostToIps(nuri.getHost(), false, true);
+        if (ips == null) {
+            return activeIps.contains(nuri.getHost());
+        }
+        for (String ip : ips) {
+            if (activeIps.contains(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether any server is neither in use nor in the active's failure domain.
+     * @return true if there is such a server
+     */
+    public boolean hasOtherFailureDomain() {
+        for (String server : getServerList()) {
+            try {
+                NatsUri nuri = new NatsUri(server);
+                if (!isInUse(nuri) && !isSameFailureDomain(nuri)) {
+                    return true;
+                }
+            }
+            catch (URISyntaxException e) {
+                // not a server we could connect to anyway
+            }
+        }
+        return false;
+    }
+
+    private boolean noFailureDomain() {
+        return sameDomainServers.isEmpty() && activeIpsRef.get().isEmpty();
+    }
+
     @Override
     public void initialize(@NonNull Options opts) {
         pool.initialize(opts);
+        serverListChanged();
     }
 
     @Override
     public boolean acceptDiscoveredUrls(@NonNull List<@NonNull String> discoveredServers) {
-        return pool.acceptDiscoveredUrls(discoveredServers);
+        boolean changed = pool.acceptDiscoveredUrls(discoveredServers);
+        if (changed) {
+            serverListChanged();
+            prefetchHosts();
+        }
+        return changed;
     }
 
     @Override
     public @Nullable NatsUri peekNextServer() {
-        NatsUri active = activeServerRef.get();
-        if (active == null) {
+        if (ranking() != null) {
+            return bestServer(Collections.emptyList());
+        }
+        if (nothingInUse()) {
             return pool.peekNextServer();
         }
 
         NatsUri firstPeek = pool.peekNextServer();
         NatsUri peek = firstPeek;
-        while (peek != null && peek.equivalent(active)) {
+        while (peek != null && isInUse(peek)) {
             pool.nextServer(); // advance and peek again
             peek = pool.peekNextServer();
             if (peek == firstPeek) { // if we've looped around, nothing else we can do
@@ -53,34 +309,300 @@ public class ApPassiveServerPool implements ServerPool {
 
     @Override
     public @Nullable NatsUri nextServer() {
-        NatsUri active = activeServerRef.get();
-        if (active == null) {
+        if (ranking() != null) {
+            return bestServer(Collections.emptyList());
+        }
+
+        NatsUri fastest = getFastestAvailableServer();
+        if (fastest != null) {
+            // rotate the wrapped pool to the fastest, so it still tracks attempts
+            NatsUri firstServer = pool.nextServer();
+            NatsUri server = firstServer;
+            while (server != null && !server.equivalent(fastest)) {
+                server = pool.nextServer();
+                if (server == firstServer) {
+                    break;
+                }
+            }
+            if (server != null && server.equivalent(fastest)) {
+                return server;
+            }
+        }
+
+        if (nothingInUse() && noFailureDomain()) {
             return pool.nextServer();
         }
         NatsUri firstServer = pool.nextServer();
         NatsUri server = firstServer;
-        while (server != null && server.equivalent(active)) {
+        NatsUri sameDomain = null;
+        while (server != null && (isInUse(server) || isSameFailureDomain(server))) {
+            if (sameDomain == null && !isInUse(server)) {
+                sameDomain = server; // only used if there is nothing in another failure domain
+            }
             server = pool.nextServer(); // get the next nextServer
             if (server == firstServer) { // if we've looped around, nothing else we can do
-                break;
+                return sameDomain == null ? server : sameDomain;
             }
         }
         return server;
     }
 
+    /**
+     * The next server that is not in use and not one of the excluded servers,
+     * for picking several different servers at once.
+     * @param exclude servers to leave out
+     * @return the server, or null if every server is in use or excluded
+     */
+    @Nullable NatsUri nextServerExcluding(Collection<NatsUri> exclude) {
+        if (ranking() != null) {
+            NatsUri best = bestServer(exclude);
+            return best == null || isInUse(best) ? null : best;
+        }
+        int tries = getServerList().size();
+        while (tries-- > 0) {
+            NatsUri nuri = nextServer();
+            if (nuri != null && !isInUse(nuri) && !isExcluded(nuri, exclude)) {
+                return nuri;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The best ranked server that is not excluded. Servers in use are skipped, but are the fallback
+     * if nothing else is left. The ranking already puts servers in the active's failure domain,
+     * then servers with an open breaker, after the rest, so only the servers in use
+     * and the excluded ones are stepped over.
+     */
+    private @Nullable NatsUri bestServer(Collection<NatsUri> exclude) {
+        Ranking ranking = ranking();
+        if (ranking == null) {
+            return null;
+        }
+        NatsUri inUse = null;
+        for (Rank rank : ranking.ranks) {
+            NatsUri nuri = rank.nuri;
+            if (isExcluded(nuri, exclude)) {
+                continue;
+            }
+            if (isInUse(nuri)) {
+                if (inUse == null) {
+                    inUse = nuri;
+                }
+                continue;
+            }
+            return nuri;
+        }
+        return inUse;
+    }
+
+    private static boolean isExcluded(NatsUri nuri, Collection<NatsUri> exclude) {
+        for (NatsUri excluded : exclude) {
+            if (nuri.equivalent(excluded)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The ranking of the wrapped pool's servers, rebuilt if it was dropped or is too old,
+     * since penalties decay and breakers close without any new score.
+     * Only a {@link NatsServerPool} is ranked, since it matches the servers it is told about
+     * by host and port, so it recognizes the ones built here from its server list.
+     * @return the ranking, or null if the wrapped pool is not a {@link NatsServerPool}
+     */
+    private @Nullable Ranking ranking() {
+        if (!(pool instanceof NatsServerPool)) {
+            return null;
+        }
+        long now = NatsSystemClock.nanoTime();
+        Ranking ranking = rankingRef.get();
+        if (ranking != null && now - ranking.builtNanos < RANK_MAX_AGE_NANOS) {
+            return ranking;
+        }
+
+        Map<String, Long> latencyByKey = new HashMap<>();
+        for (Map.Entry<NatsUri, Long> entry : latencies.entrySet()) {
+            latencyByKey.put(ApServerHealth.key(entry.getKey()), entry.getValue());
+        }
+        ranking = new Ranking(now);
+        NatsUri[] servers = servers();
+        for (int i = 0; i < servers.length; i++) {
+            String key = ApServerHealth.key(servers[i]);
+            Rank rank = rank(servers[i], i, latencyByKey.get(key), now);
+            ranking.ranks.add(rank);
+            ranking.byKey.put(key, rank);
+        }
+        rankingRef.set(ranking);
+        return ranking;
+    }
+
+    /**
+     * Moves one server within the ranking after its latency, health or failure domain changed.
+     * @param nuri the server
+     */
+    private void rerank(NatsUri nuri) {
+        Ranking ranking = rankingRef.get();
+        if (ranking == null) {
+            return;
+        }
+        ranking.byKey.computeIfPresent(ApServerHealth.key(nuri), (key, current) -> {
+            Rank next = rank(current.nuri, current.position, getLatency(current.nuri), NatsSystemClock.nanoTime());
+            if (RANK_ORDER.compare(current, next) == 0) {
+                return current;
+            }
+            // added before the old one is removed, so a reader never misses the server
+            ranking.ranks.add(next);
+            ranking.ranks.remove(current);
+            return next;
+        });
+    }
+
+    private Rank rank(NatsUri nuri, int position, @Nullable Long latency, long now) {
+        long openUntil = health.openUntil(nuri);
+        if (openUntil > now) {
+            return new Rank(nuri, TIER_BREAKER_OPEN, openUntil, 0, position);
+        }
+        // servers within one failure of each other are ordered by latency, unknown before unreachable
+        return new Rank(nuri, isSameFailureDomain(nuri) ? TIER_SAME_DOMAIN : TIER_AVAILABLE,
+            (long) health.penalty(nuri, now), latency == null ? Long.MAX_VALUE - 1 : latency, position);
+    }
+
+    /**
+     * The wrapped pool's servers, built from its server list, in its order. Reading the list
+     * leaves the wrapped pool's rotation alone. A server keeps its NatsUri instance as long as
+     * it is in the list, and the list is only read again once it may have changed.
+     * @return the servers
+     */
+    private NatsUri[] servers() {
+        NatsUri[] servers = serversRef.get();
+        if (servers != null) {
+            return servers;
+        }
+        serversLock.lock();
+        try {
+            servers = serversRef.get();
+            if (servers == null) {
+                List<NatsUri> list = new ArrayList<>();
+                for (String server : pool.getServerList()) {
+                    NatsUri nuri = nuris.get(server);
+                    if (nuri == null) {
+                        try {
+                            nuri = new NatsUri(server);
+                        }
+                        catch (URISyntaxException e) {
+                            continue; // not a server we could connect to anyway
+                        }
+                        nuris.put(server, nuri);
+                    }
+                    list.add(nuri);
+                }
+                servers = list.toArray(new NatsUri[0]);
+                serversRef.set(servers);
+            }
+            return servers;
+        }
+        finally {
+            serversLock.unlock();
+        }
+    }
+
+    private void serverListChanged() {
+        serversLock.lock();
+        try {
+            serversRef.set(null);
+        }
+        finally {
+            serversLock.unlock();
+        }
+        rankingRef.set(null);
+    }
+
+    /**
+     * Kept for the {@link ServerPool} interface, where it is still abstract.
+     * @deprecated use {@link #resolveHostToIps(String, boolean, boolean)}
+     */
+    @Deprecated
     @Override
     public @Nullable List<String> resolveHostToIps(@NonNull String host) {
-        return pool.resolveHostToIps(host);
+        return resolveHostToIps(host, false, false);
+    }
+
+    /**
+     * Resolves through the cache, which holds every ip of the host, IPv6 included,
+     * and trims that to what was asked for.
+     */
+    @Override
+    public @Nullable List<String> resolveHostToIps(@NonNull String host, boolean maxOneResult, boolean includeIPV6) {
+        List<String> ips = dnsCache.resolve(host);
+        if (ips == null) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (String ip : ips) {
+            if (includeIPV6 || ip.indexOf(':') == -1) {
+                result.add(ip);
+                if (maxOneResult) {
+                    break;
+                }
+            }
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Set the executor host resolutions are refreshed on, and resolve
+     * every server's host in the background. A lookup can hang for the resolver's timeout,
+     * so it should be an executor nothing urgent waits behind.
+     * @param executor the executor
+     */
+    void startDnsCache(Executor executor) {
+        dnsCache.setExecutor(executor);
+        prefetchHosts();
+    }
+
+    private void prefetchHosts() {
+        for (String server : getServerList()) {
+            try {
+                NatsUri nuri = new NatsUri(server);
+                if (!nuri.hostIsIpAddress()) {
+                    dnsCache.prefetch(nuri.getHost());
+                }
+            }
+            catch (URISyntaxException e) {
+                // not a server we could connect to anyway
+            }
+        }
     }
 
     @Override
     public void connectSucceeded(@NonNull NatsUri nuri) {
+        health.succeeded(nuri, NatsSystemClock.nanoTime());
         pool.connectSucceeded(nuri);
+        rerank(nuri);
+    }
+
+    /**
+     * A server announced lame duck mode, so it is skipped until it has had time to restart.
+     * @param nuri the server
+     */
+    void lameDuck(NatsUri nuri) {
+        health.lameDuck(nuri, NatsSystemClock.nanoTime());
+        rerank(nuri);
     }
 
     @Override
     public void connectFailed(@NonNull NatsUri nuri) {
-        pool.connectFailed(nuri);
+        health.failed(nuri, NatsSystemClock.nanoTime());
+        int before = pool.getServerList().size();
+        pool.connectFailed(nuri); // may drop the server
+        if (pool.getServerList().size() == before) {
+            rerank(nuri);
+        }
+        else {
+            serverListChanged();
+        }
     }
 
     @Override
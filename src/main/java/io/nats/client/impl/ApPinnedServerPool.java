@@ -0,0 +1,81 @@
+package io.nats.client.impl;
+
+import io.nats.client.Options;
+import io.nats.client.ServerPool;
+import io.nats.client.support.NatsUri;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A pool of one server, used to race connections to several servers at once
+ * without two racers picking the same server. Connect results are passed
+ * on to the shared pool.
+ */
+class ApPinnedServerPool implements ServerPool {
+    private final ApPassiveServerPool pool;
+    private final NatsUri server;
+
+    ApPinnedServerPool(ApPassiveServerPool pool, NatsUri server) {
+        this.pool = pool;
+        this.server = server;
+    }
+
+    @Override
+    public void initialize(@NonNull Options opts) {
+        // the server is already known
+    }
+
+    @Override
+    public boolean acceptDiscoveredUrls(@NonNull List<@NonNull String> discoveredServers) {
+        return false;
+    }
+
+    @Override
+    public @Nullable NatsUri peekNextServer() {
+        return server;
+    }
+
+    @Override
+    public @Nullable NatsUri nextServer() {
+        return server;
+    }
+
+    /**
+     * Still abstract in {@link ServerPool}, but connections call
+     * {@link #resolveHostToIps(String, boolean, boolean)}.
+     * @deprecated use {@link #resolveHostToIps(String, boolean, boolean)}
+     */
+    @Deprecated
+    @Override
+    public @Nullable List<String> resolveHostToIps(@NonNull String host) {
+        return resolveHostToIps(host, false, false);
+    }
+
+    @Override
+    public @Nullable List<String> resolveHostToIps(@NonNull String host, boolean maxOneResult, boolean includeIPV6) {
+        return pool.resolveHostToIps(host, maxOneResult, includeIPV6);
+    }
+
+    @Override
+    public void connectSucceeded(@NonNull NatsUri nuri) {
+        pool.connectSucceeded(nuri);
+    }
+
+    @Override
+    public void connectFailed(@NonNull NatsUri nuri) {
+        pool.connectFailed(nuri);
+    }
+
+    @Override
+    public @NonNull List<String> getServerList() {
+        return Collections.singletonList(server.toString());
+    }
+
+    @Override
+    public boolean hasSecureServer() {
+        return server.isSecure();
+    }
+}
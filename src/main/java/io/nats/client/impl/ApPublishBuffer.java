@@ -0,0 +1,114 @@
+package io.nats.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded ring of the active's recent publishes that the server has not yet acknowledged.
+ * A publish is acknowledged by the PONG to a PING queued after it, since the server
+ * handles a connection's protocol in order. When the ring is full the oldest
+ * publish is dropped, and can no longer be replayed.
+ * Each publish also keeps its place in the writer's queue, so after a failure the ones
+ * the writer had already taken can be told from the ones it still holds.
+ */
+class ApPublishBuffer {
+    private final ApStatistics statistics;
+    private final NatsMessage[] ring;
+    private final long[] queued;  // the place in the writer's queue of each publish in the ring
+    private long nextSequence;    // the sequence of the next publish, the first is 1
+    private long firstSequence;   // the oldest sequence still in the ring
+
+    ApPublishBuffer(int capacity, ApStatistics statistics) {
+        this.statistics = statistics;
+        ring = new NatsMessage[capacity];
+        queued = new long[capacity];
+        nextSequence = 1;
+        firstSequence = 1;
+    }
+
+    /**
+     * Add a publish that has been queued.
+     * @param msg the message
+     * @param queuedIndex its place in the writer's queue
+     * @return the sequence of the publish
+     */
+    synchronized long add(NatsMessage msg, long queuedIndex) {
+        if (nextSequence - firstSequence == ring.length) {
+            ring[index(firstSequence++)] = null;
+            statistics.increment(ApStatistics.Counter.REPLAY_BUFFER_OVERFLOWS);
+        }
+        long sequence = nextSequence++;
+        ring[index(sequence)] = msg;
+        queued[index(sequence)] = queuedIndex;
+        return sequence;
+    }
+
+    /**
+     * A publish was queued again, after a reconnect.
+     * @param msg the message, as it was added
+     * @param queuedIndex its new place in the writer's queue
+     */
+    synchronized void requeued(NatsMessage msg, long queuedIndex) {
+        for (long s = firstSequence; s < nextSequence; s++) {
+            if (ring[index(s)] == msg) {
+                queued[index(s)] = queuedIndex;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the sequence of the newest publish, 0 if there has been none
+     */
+    synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Drop every publish up to and including the sequence.
+     * @param sequence the newest acknowledged sequence
+     */
+    synchronized void acknowledge(long sequence) {
+        long end = Math.min(sequence + 1, nextSequence);
+        while (firstSequence < end) {
+            ring[index(firstSequence++)] = null;
+        }
+    }
+
+    /**
+     * @return the publishes not yet acknowledged, oldest first
+     */
+    synchronized List<NatsMessage> unacknowledged() {
+        List<NatsMessage> list = new ArrayList<>((int) (nextSequence - firstSequence));
+        for (long s = firstSequence; s < nextSequence; s++) {
+            list.add(ring[index(s)]);
+        }
+        return list;
+    }
+
+    /**
+     * @param takenThrough the place in the writer's queue up to which the writer has taken everything
+     * @return the publishes not yet acknowledged that the writer has taken, oldest first
+     */
+    synchronized List<NatsMessage> taken(long takenThrough) {
+        List<NatsMessage> list = new ArrayList<>();
+        for (long s = firstSequence; s < nextSequence; s++) {
+            if (queued[index(s)] <= takenThrough) {
+                list.add(ring[index(s)]);
+            }
+        }
+        return list;
+    }
+
+    synchronized int size() {
+        return (int) (nextSequence - firstSequence);
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % ring.length);
+    }
+}
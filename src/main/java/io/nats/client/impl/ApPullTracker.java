@@ -0,0 +1,220 @@
+package io.nats.client.impl;
+
+import io.nats.client.NatsSystemClock;
+import io.nats.client.support.JsonParseException;
+import io.nats.client.support.JsonParser;
+import io.nats.client.support.JsonValue;
+import io.nats.client.support.JsonValueUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the active's outstanding JetStream pull requests and the last acked stream sequence
+ * of each consumer. Pull requests live on the server connection they were sent on,
+ * so after a reconnect the ones still open are sent again with what is left of their
+ * batch, bytes and expiry, instead of waiting for the heartbeat alarm to re-pull.
+ */
+class ApPullTracker {
+    private static final String MSG_NEXT = "CONSUMER.MSG.NEXT.";
+    private static final String ACK_PREFIX = "$JS.ACK.";
+    private static final String BATCH = "batch";
+    private static final String EXPIRES = "expires";
+    private static final String MAX_BYTES = "max_bytes";
+    private static final String NO_WAIT = "no_wait";
+
+    // don't bother sending a pull that would expire before the server could answer it
+    static final long MIN_REISSUE_EXPIRY_NANOS = 10_000_000;
+
+    private final Map<String, Pull> pulls;
+    private final Map<String, AtomicLong> lastAcked;
+    private final AtomicLong issued;
+
+    static class Pull {
+        final String subject;
+        final String replyTo;
+        final Map<String, JsonValue> body;
+        final AtomicInteger remaining;
+        final AtomicLong remainingBytes;
+        final long expiresNanos;
+        final long issuedNanos;
+        final long order;
+
+        Pull(String subject, String replyTo, Map<String, JsonValue> body, int batch, long maxBytes, long expiresNanos, long order) {
+            this.subject = subject;
+            this.replyTo = replyTo;
+            this.body = body;
+            remaining = new AtomicInteger(batch);
+            remainingBytes = new AtomicLong(maxBytes);
+            this.expiresNanos = expiresNanos;
+            issuedNanos = NatsSystemClock.nanoTime();
+            this.order = order;
+        }
+    }
+
+    ApPullTracker() {
+        pulls = new ConcurrentHashMap<>();
+        lastAcked = new ConcurrentHashMap<>();
+        issued = new AtomicLong();
+    }
+
+    /**
+     * Called for every message the active publishes. Only pull requests and acks are tracked.
+     * @param subject the subject
+     * @param replyTo the reply to, may be null
+     * @param data the payload
+     */
+    void published(String subject, String replyTo, byte[] data) {
+        if (subject.startsWith(ACK_PREFIX)) {
+            acked(subject);
+            return;
+        }
+        if (replyTo == null || data == null || !subject.contains(MSG_NEXT)) {
+            return;
+        }
+        JsonValue jv;
+        try {
+            jv = JsonParser.parse(data);
+        }
+        catch (JsonParseException e) {
+            return; // the server will complain about it
+        }
+        if (jv.map == null || JsonValueUtils.readBoolean(jv, NO_WAIT, false)) {
+            return; // a no wait pull is answered right away
+        }
+        pulls.put(replyTo, new Pull(subject, replyTo, jv.map,
+            JsonValueUtils.readInteger(jv, BATCH, 1),
+            JsonValueUtils.readLong(jv, MAX_BYTES, 0),
+            JsonValueUtils.readLong(jv, EXPIRES, 0),
+            issued.incrementAndGet()));
+    }
+
+    /**
+     * Called for every message the active receives. Pulled messages keep their stream subject,
+     * so they are matched to a pull by the inbox of the subscription they arrive on.
+     * Status messages are sent to the pull's own reply to.
+     * @param msg the message
+     * @param inbox the subject of the subscription the message is for, null if it has none
+     */
+    void delivered(NatsMessage msg, String inbox) {
+        if (pulls.isEmpty()) {
+            return;
+        }
+        Pull pull = msg.isStatusMessage() ? pulls.get(msg.getSubject()) : pullFor(inbox);
+        if (pull == null) {
+            return;
+        }
+        if (msg.isStatusMessage()) {
+            // anything but a heartbeat ends the pull
+            if (msg.getStatus().getCode() != 100) {
+                pulls.remove(pull.replyTo, pull);
+            }
+            return;
+        }
+        pull.remainingBytes.addAndGet(-msg.getSizeInBytes());
+        if (pull.remaining.decrementAndGet() <= 0) {
+            pulls.remove(pull.replyTo, pull);
+        }
+    }
+
+    /**
+     * A subscription with a wildcard inbox has a reply to per pull, and the server
+     * fills them oldest first.
+     * @param inbox the subscription's subject
+     * @return the pull the next message on the subscription counts against, or null
+     */
+    private Pull pullFor(String inbox) {
+        if (inbox == null) {
+            return null;
+        }
+        Pull pull = pulls.get(inbox);
+        if (pull != null || !inbox.endsWith(".*")) {
+            return pull;
+        }
+        String prefix = inbox.substring(0, inbox.length() - 1);
+        for (Pull p : pulls.values()) {
+            if (p.replyTo.startsWith(prefix) && p.replyTo.indexOf('.', prefix.length()) == -1
+                && (pull == null || p.order < pull.order)) {
+                pull = p;
+            }
+        }
+        return pull;
+    }
+
+    /**
+     * Builds the pull requests to send again after a reconnect,
+     * dropping the ones that are filled or about to expire.
+     * @return the pull requests, with the same subject and reply to
+     */
+    List<NatsMessage> reissue() {
+        List<NatsMessage> reissued = new ArrayList<>();
+        long now = NatsSystemClock.nanoTime();
+        for (Pull pull : pulls.values()) {
+            int remaining = pull.remaining.get();
+            long remainingExpiry = pull.expiresNanos == 0 ? 0 : pull.expiresNanos - (now - pull.issuedNanos);
+            boolean bytesLeft = pull.remainingBytes.get() > 0 || !pull.body.containsKey(MAX_BYTES);
+            if (remaining <= 0 || !bytesLeft || (pull.expiresNanos != 0 && remainingExpiry < MIN_REISSUE_EXPIRY_NANOS)) {
+                pulls.remove(pull.replyTo, pull);
+                continue;
+            }
+            Map<String, JsonValue> body = new HashMap<>(pull.body);
+            body.put(BATCH, new JsonValue(remaining));
+            if (pull.expiresNanos != 0) {
+                body.put(EXPIRES, new JsonValue(remainingExpiry));
+            }
+            if (body.containsKey(MAX_BYTES)) {
+                body.put(MAX_BYTES, new JsonValue(pull.remainingBytes.get()));
+            }
+            byte[] data = new JsonValue(body).toJson().getBytes(StandardCharsets.UTF_8);
+            reissued.add(new NatsMessage(pull.subject, pull.replyTo, data));
+        }
+        return reissued;
+    }
+
+    int outstanding() {
+        return pulls.size();
+    }
+
+    /**
+     * @param stream the stream name
+     * @param consumer the consumer name
+     * @return the last stream sequence acked for the consumer, 0 if none
+     */
+    long getLastAckedStreamSequence(String stream, String consumer) {
+        AtomicLong seq = lastAcked.get(stream + "." + consumer);
+        return seq == null ? 0 : seq.get();
+    }
+
+    /**
+     * Ack subjects are $JS.ACK.stream.consumer.delivered.sseq.cseq.ts.pending,
+     * or with the domain and account hash after ACK and a random token at the end.
+     */
+    private void acked(String subject) {
+        String[] tokens = subject.split("\\.");
+        int offset;
+        if (tokens.length == 9) {
+            offset = 2;
+        }
+        else if (tokens.length >= 11) {
+            offset = 4;
+        }
+        else {
+            return;
+        }
+        long streamSeq;
+        try {
+            streamSeq = Long.parseLong(tokens[offset + 3]);
+        }
+        catch (NumberFormatException e) {
+            return;
+        }
+        AtomicLong last = lastAcked.computeIfAbsent(tokens[offset] + "." + tokens[offset + 1], k -> new AtomicLong());
+        last.accumulateAndGet(streamSeq, Math::max);
+    }
+}
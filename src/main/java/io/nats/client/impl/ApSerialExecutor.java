@@ -0,0 +1,134 @@
+package io.nats.client.impl;
+
+import io.nats.client.NatsSystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one connection's callbacks in order, one at a time, on a pool shared with other connections.
+ * Only one of its tasks is on the pool at once, and each task goes to the back of the pool's queue,
+ * so a slow listener holds up its own connection's events and no one else's.
+ * Shutting it down does not shut down the pool.
+ */
+class ApSerialExecutor extends AbstractExecutorService {
+    private final ExecutorService pool;
+    private final ArrayDeque<Runnable> tasks;
+    private boolean running;          // a task is on the pool, guarded by tasks
+    private volatile boolean shutdown;
+
+    ApSerialExecutor(ExecutorService pool) {
+        this.pool = pool;
+        tasks = new ArrayDeque<>();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        try {
+            pool.execute(this::runNext);
+        }
+        catch (RejectedExecutionException e) {
+            stopped();
+            throw e;
+        }
+    }
+
+    private void runNext() {
+        Runnable task;
+        synchronized (tasks) {
+            task = tasks.poll();
+        }
+        try {
+            if (task != null) {
+                task.run();
+            }
+        }
+        finally {
+            boolean more;
+            synchronized (tasks) {
+                more = !tasks.isEmpty();
+                if (!more) {
+                    running = false;
+                    tasks.notifyAll();
+                }
+            }
+            if (more) {
+                try {
+                    pool.execute(this::runNext);
+                }
+                catch (RejectedExecutionException e) {
+                    // the pool was shut down, nothing more will run
+                    stopped();
+                }
+            }
+        }
+    }
+
+    private void stopped() {
+        synchronized (tasks) {
+            tasks.clear();
+            running = false;
+            tasks.notifyAll();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        synchronized (tasks) {
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            return pending;
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown || pool.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        if (!isShutdown()) {
+            return false;
+        }
+        synchronized (tasks) {
+            return !running;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = NatsSystemClock.nanoTime() + unit.toNanos(timeout);
+        synchronized (tasks) {
+            while (!isTerminated()) {
+                long left = end - NatsSystemClock.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(tasks, left);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.nats.client.impl;
+
+import io.nats.client.support.NatsUri;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per server health, fed by connect successes and failures.
+ * Each failure adds one to a server's penalty, which halves every half life,
+ * and a success halves it right away. After {@link #BREAKER_THRESHOLD} failures in a row
+ * the server's circuit breaker opens, doubling the time it stays open with every
+ * further failure, up to {@link #BREAKER_MAX_NANOS}. Once it has been open long enough
+ * the server may be tried again, and a success closes it.
+ * A server announcing lame duck mode gets its breaker opened for {@link #LAME_DUCK_NANOS}
+ * without counting a failure, since it is about to shut down.
+ * Updates are compare and set on an immutable state, reads never block.
+ */
+class ApServerHealth {
+    static final int BREAKER_THRESHOLD = 3;
+    static final long BREAKER_BASE_NANOS = 1_000_000_000L;
+    static final long BREAKER_MAX_NANOS = 30_000_000_000L;
+    static final long PENALTY_HALF_LIFE_NANOS = 30_000_000_000L;
+    static final long LAME_DUCK_NANOS = 120_000_000_000L; // the server's default lame duck duration
+
+    private static final State HEALTHY = new State(0, 0, 0, 0);
+
+    private static final class State {
+        final double penalty;
+        final long updatedNanos;
+        final int failures;
+        final long openUntilNanos;
+
+        State(double penalty, long updatedNanos, int failures, long openUntilNanos) {
+            this.penalty = penalty;
+            this.updatedNanos = updatedNanos;
+            this.failures = failures;
+            this.openUntilNanos = openUntilNanos;
+        }
+
+        double penaltyAt(long nowNanos) {
+            if (penalty == 0) {
+                return 0;
+            }
+            return penalty * Math.pow(0.5, (double) (nowNanos - updatedNanos) / PENALTY_HALF_LIFE_NANOS);
+        }
+    }
+
+    private final Map<String, AtomicReference<State>> states;
+
+    ApServerHealth() {
+        states = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The key servers are compared by, the same host and port {@link NatsUri#equivalent(NatsUri)} uses.
+     * @param nuri the server
+     * @return the key
+     */
+    static String key(NatsUri nuri) {
+        return nuri.getHost().toLowerCase(Locale.ROOT) + ":" + nuri.getPort();
+    }
+
+    void succeeded(NatsUri nuri, long nowNanos) {
+        AtomicReference<State> ref = stateRef(nuri);
+        State current;
+        State next;
+        do {
+            current = ref.get();
+            next = new State(current.penaltyAt(nowNanos) / 2, nowNanos, 0, 0);
+        } while (!ref.compareAndSet(current, next));
+    }
+
+    void failed(NatsUri nuri, long nowNanos) {
+        AtomicReference<State> ref = stateRef(nuri);
+        State current;
+        State next;
+        do {
+            current = ref.get();
+            int failures = current.failures + 1;
+            long openUntil = 0;
+            if (failures >= BREAKER_THRESHOLD) {
+                int doublings = Math.min(failures - BREAKER_THRESHOLD, 30);
+                openUntil = nowNanos + Math.min(BREAKER_BASE_NANOS << doublings, BREAKER_MAX_NANOS);
+            }
+            next = new State(current.penaltyAt(nowNanos) + 1, nowNanos, failures, openUntil);
+        } while (!ref.compareAndSet(current, next));
+    }
+
+    void lameDuck(NatsUri nuri, long nowNanos) {
+        AtomicReference<State> ref = stateRef(nuri);
+        State current;
+        State next;
+        do {
+            current = ref.get();
+            long openUntil = Math.max(current.openUntilNanos, nowNanos + LAME_DUCK_NANOS);
+            next = new State(current.penaltyAt(nowNanos), nowNanos, current.failures, openUntil);
+        } while (!ref.compareAndSet(current, next));
+    }
+
+    double penalty(NatsUri nuri, long nowNanos) {
+        AtomicReference<State> ref = states.get(key(nuri));
+        return ref == null ? 0 : ref.get().penaltyAt(nowNanos);
+    }
+
+    /**
+     * @param nuri the server
+     * @return when the server's breaker closes again, 0 if it never opened
+     */
+    long openUntil(NatsUri nuri) {
+        AtomicReference<State> ref = states.get(key(nuri));
+        return ref == null ? 0 : ref.get().openUntilNanos;
+    }
+
+    boolean isOpen(NatsUri nuri, long nowNanos) {
+        return openUntil(nuri) > nowNanos;
+    }
+
+    private AtomicReference<State> stateRef(NatsUri nuri) {
+        return states.computeIfAbsent(key(nuri), k -> new AtomicReference<>(HEALTHY));
+    }
+}
@@ -0,0 +1,154 @@
+package io.nats.client.impl;
+
+import io.nats.client.Options;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors shared by the active and standby connections of any number of {@link ApConnection}s,
+ * instead of each connection making its own. Every connection still runs a reader and a writer
+ * for as long as it is connected, so those run on a pool that grows as needed, or on virtual threads
+ * where the JVM has them. Timers, callbacks and passive rebuilds are bounded. Each connection,
+ * active, passive or group standby, gets its own callback executor on the shared callback pool,
+ * see {@link #newCallbackExecutor()}.
+ * The connections never shut these down, the application does with {@link #shutdown()}.
+ */
+public class ApSharedExecutors {
+    public static final int DEFAULT_SCHEDULED_THREADS = 2;
+    public static final int DEFAULT_CALLBACK_THREADS = 4;
+    public static final int DEFAULT_PASSIVE_THREADS = 4;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduledExecutor;
+    private final ExecutorService callbackExecutor;
+    private final ExecutorService passiveExecutor;
+    private final boolean virtualThreads;
+
+    private ApSharedExecutors(boolean preferVirtualThreads, int scheduledThreads, int callbackThreads, int passiveThreads) {
+        ExecutorService virtual = preferVirtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        virtualThreads = virtual != null;
+        executor = virtualThreads ? virtual : Executors.newCachedThreadPool(threadFactory("-ap-shared"));
+
+        ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(scheduledThreads, threadFactory("-ap-shared-timer"));
+        stpe.setRemoveOnCancelPolicy(true);
+        scheduledExecutor = stpe;
+
+        // each connection's events are kept in order by its own serial executor on this pool
+        callbackExecutor = Executors.newFixedThreadPool(callbackThreads, threadFactory("-ap-shared-callback"));
+
+        // a passive task holds its thread for one connect or round trip at most, backoff waits
+        // are on the timer, so with platform threads a bounded pool can only delay other
+        // connections' rebuilds and health checks by a connection timeout, and never starves a reader
+        passiveExecutor = virtualThreads
+            ? newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(passiveThreads, threadFactory("-ap-shared-passive"));
+    }
+
+    /**
+     * Shared executors on platform threads with the default bounds.
+     * @return the executors
+     */
+    public static ApSharedExecutors create() {
+        return new ApSharedExecutors(false, DEFAULT_SCHEDULED_THREADS, DEFAULT_CALLBACK_THREADS, DEFAULT_PASSIVE_THREADS);
+    }
+
+    /**
+     * Shared executors using virtual threads for readers, writers and passive rebuilds
+     * when the JVM supports them, JDK 21 or later, otherwise platform threads.
+     * @return the executors
+     */
+    public static ApSharedExecutors createPreferVirtualThreads() {
+        return new ApSharedExecutors(true, DEFAULT_SCHEDULED_THREADS, DEFAULT_CALLBACK_THREADS, DEFAULT_PASSIVE_THREADS);
+    }
+
+    /**
+     * Shared executors with the given bounds.
+     * @param preferVirtualThreads whether to use virtual threads when the JVM supports them
+     * @param scheduledThreads the number of timer threads
+     * @param passiveThreads the number of passive rebuild threads, when not on virtual threads
+     * @return the executors
+     */
+    public static ApSharedExecutors create(boolean preferVirtualThreads, int scheduledThreads, int passiveThreads) {
+        return create(preferVirtualThreads, scheduledThreads, DEFAULT_CALLBACK_THREADS, passiveThreads);
+    }
+
+    /**
+     * Shared executors with the given bounds.
+     * @param preferVirtualThreads whether to use virtual threads when the JVM supports them
+     * @param scheduledThreads the number of timer threads
+     * @param callbackThreads the number of threads running listener callbacks for all connections
+     * @param passiveThreads the number of passive rebuild threads, when not on virtual threads
+     * @return the executors
+     */
+    public static ApSharedExecutors create(boolean preferVirtualThreads, int scheduledThreads, int callbackThreads, int passiveThreads) {
+        return new ApSharedExecutors(preferVirtualThreads, Math.max(1, scheduledThreads),
+            Math.max(1, callbackThreads), Math.max(1, passiveThreads));
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public ScheduledExecutorService getScheduledExecutor() {
+        return scheduledExecutor;
+    }
+
+    public ExecutorService getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * A callback executor for one connection, running its callbacks in order on the shared
+     * callback pool, so a slow listener only holds up its own connection's events.
+     * Shutting it down leaves the pool running.
+     * @return the executor
+     */
+    public ExecutorService newCallbackExecutor() {
+        return new ApSerialExecutor(callbackExecutor);
+    }
+
+    public ExecutorService getPassiveExecutor() {
+        return passiveExecutor;
+    }
+
+    /**
+     * Shut down every executor. Only call this once every connection using them is closed.
+     */
+    public void shutdown() {
+        passiveExecutor.shutdownNow();
+        scheduledExecutor.shutdownNow();
+        callbackExecutor.shutdown();
+        executor.shutdownNow();
+    }
+
+    private static ThreadFactory threadFactory(String suffix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, Options.DEFAULT_THREAD_NAME_PREFIX + suffix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * The build targets Java 8, so virtual threads are only reached by reflection.
+     * @return the executor, or null if the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
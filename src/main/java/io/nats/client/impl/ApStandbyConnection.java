@@ -0,0 +1,53 @@
+package io.nats.client.impl;
+
+import io.nats.client.Options;
+import io.nats.client.support.NatsUri;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A standby connection, the passive, a reserve or a racer, whose data port can be handed
+ * to the active. Its socket is read through an {@link ApHandoffStream}, and once a handoff
+ * has started, the next PONG stops its reader, right after the PONG's last byte.
+ */
+class ApStandbyConnection extends NatsConnection {
+    private volatile CompletableFuture<Boolean> handoff;
+
+    ApStandbyConnection(Options options) {
+        super(options);
+    }
+
+    @Override
+    protected void upgradeToSecureIfNeeded(NatsUri nuri) throws IOException {
+        super.upgradeToSecureIfNeeded(nuri);
+        // the reader has not started yet, and the socket's stream is final from here
+        if (dataPort instanceof SocketDataPort) {
+            SocketDataPort port = (SocketDataPort) dataPort;
+            port.in = new ApHandoffStream(port.in);
+        }
+    }
+
+    /**
+     * Starts a handoff. Every PING written so far must have been answered,
+     * so the next PONG is the answer to the PING the caller writes next.
+     * @return completes when that PONG has been read, and the reader has been told to stop
+     */
+    CompletableFuture<Boolean> startHandoff() {
+        CompletableFuture<Boolean> h = new CompletableFuture<>();
+        handoff = h;
+        return h;
+    }
+
+    @Override
+    protected void handlePong() {
+        CompletableFuture<Boolean> h = handoff;
+        if (h != null) {
+            // called on the reader's thread, which stops before its next read
+            reader.stop(false);
+            h.complete(true);
+            return;
+        }
+        super.handlePong();
+    }
+}
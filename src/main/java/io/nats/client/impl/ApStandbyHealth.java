@@ -0,0 +1,78 @@
+package io.nats.client.impl;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the health of the standby connections. Each check PINGs a standby and folds the RTT
+ * into an exponentially weighted moving average. A standby is unhealthy when it is not connected,
+ * for instance stuck reconnecting, when a PING is not answered, or when its average RTT is over the limit.
+ */
+class ApStandbyHealth {
+    static final int EWMA_WEIGHT_PERCENT = 25;
+    static final long UNKNOWN = -1;
+
+    private final long maxRttNanos;
+    private final Map<NatsConnection, Long> ewmaRtts;
+
+    ApStandbyHealth(long maxRttNanos) {
+        this.maxRttNanos = maxRttNanos;
+        ewmaRtts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * PING the standby and update its health. Blocks for up to the connection timeout.
+     * @param standby the standby
+     * @return true if the standby is healthy
+     */
+    boolean check(NatsConnection standby) {
+        long rtt;
+        if (standby.isConnected()) {
+            try {
+                rtt = standby.RTT().toNanos();
+            }
+            catch (IOException e) {
+                rtt = Long.MAX_VALUE;
+            }
+        }
+        else {
+            rtt = Long.MAX_VALUE;
+        }
+        long ewma = ewma(ewmaRtts.getOrDefault(standby, UNKNOWN), rtt);
+        ewmaRtts.put(standby, ewma);
+        return ewma <= maxRttNanos;
+    }
+
+    boolean isUnhealthy(NatsConnection standby) {
+        Long ewma = ewmaRtts.get(standby);
+        return ewma != null && ewma > maxRttNanos;
+    }
+
+    long getEwmaRtt(NatsConnection standby) {
+        return ewmaRtts.getOrDefault(standby, UNKNOWN);
+    }
+
+    /**
+     * Forget the standbys that are no longer standbys.
+     * @param standbys the current standbys
+     */
+    void retain(Collection<NatsConnection> standbys) {
+        ewmaRtts.keySet().retainAll(standbys);
+    }
+
+    /**
+     * A failed check makes the average unreachable right away,
+     * the first successful check after that starts the average over.
+     * @param previous the previous average, or {@link #UNKNOWN}
+     * @param sample the new RTT, {@link Long#MAX_VALUE} for a failed check
+     * @return the new average
+     */
+    static long ewma(long previous, long sample) {
+        if (sample == Long.MAX_VALUE || previous == UNKNOWN || previous == Long.MAX_VALUE) {
+            return sample;
+        }
+        return previous + (sample - previous) * EWMA_WEIGHT_PERCENT / 100;
+    }
+}
@@ -0,0 +1,142 @@
+package io.nats.client.impl;
+
+import io.nats.client.NatsSystemClock;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Failover statistics for an {@link ApConnection}.
+ * Counters and histograms are lock free and recording does not allocate.
+ */
+public class ApStatistics {
+
+    /**
+     * The timed phases of a failover and of the passive rebuild that follows it,
+     * and the time secure connects took, split by whether the TLS session was resumed.
+     */
+    public enum Phase {
+        RELEASE_PORT,
+        STOP_READER_WRITER,
+        SWAP_PORT,
+        START_READER_WRITER,
+        UPDATE_STATUS,
+        FAILOVER,
+        REBUILD_PASSIVE,
+        RACE_CONNECT,
+        TLS_FULL_CONNECT,
+        TLS_RESUMED_CONNECT
+    }
+
+    public enum Counter {
+        FAILOVERS,
+        COLD_RECONNECTS,
+        PASSIVE_BUILDS,
+        FAILED_PASSIVE_BUILDS,
+        PASSIVE_ROTATIONS,
+        UNHEALTHY_STANDBYS,
+        REPLAYED_PUBLISHES,
+        REPLAY_BUFFER_OVERFLOWS,
+        ABANDONED_READERS,
+        HEDGED_REQUESTS,
+        HEDGED_PASSIVE_WINS,
+        RACE_FAILOVERS,
+        REISSUED_PULLS,
+        TLS_FULL_HANDSHAKES,
+        TLS_RESUMED_HANDSHAKES,
+        SWITCHOVERS,
+        LAME_DUCK_SWITCHOVERS
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final long HAS_PASSIVE = Long.MIN_VALUE;
+
+    private final ApStatisticsSink sink;
+    private final ApLatencyHistogram[] histograms;
+    private final AtomicLongArray counters;
+    private final AtomicLong withoutPassiveNanos;
+    private final AtomicLong withoutPassiveSince;
+
+    ApStatistics(ApStatisticsSink sink) {
+        this.sink = sink;
+        histograms = new ApLatencyHistogram[PHASES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new ApLatencyHistogram();
+        }
+        counters = new AtomicLongArray(COUNTERS.length);
+        withoutPassiveNanos = new AtomicLong();
+        withoutPassiveSince = new AtomicLong(HAS_PASSIVE);
+    }
+
+    void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+        if (sink != null) {
+            sink.phase(phase, nanos);
+        }
+    }
+
+    void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+        if (sink != null) {
+            sink.increment(counter);
+        }
+    }
+
+    void passiveLost() {
+        withoutPassiveSince.compareAndSet(HAS_PASSIVE, NatsSystemClock.nanoTime());
+    }
+
+    void passiveRestored() {
+        long since = withoutPassiveSince.getAndSet(HAS_PASSIVE);
+        if (since != HAS_PASSIVE) {
+            withoutPassiveNanos.addAndGet(NatsSystemClock.nanoTime() - since);
+        }
+    }
+
+    /**
+     * The latency histogram for a phase
+     * @param phase the phase
+     * @return the histogram
+     */
+    public ApLatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * The current value of a counter
+     * @param counter the counter
+     * @return the value
+     */
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * The total time there was no passive connection ready to take over,
+     * including the current stretch if there is no passive right now.
+     * @return the duration
+     */
+    public Duration getTimeWithoutPassive() {
+        long nanos = withoutPassiveNanos.get();
+        long since = withoutPassiveSince.get();
+        if (since != HAS_PASSIVE) {
+            nanos += NatsSystemClock.nanoTime() - since;
+        }
+        return Duration.ofNanos(nanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ApStatistics{");
+        for (Counter c : COUNTERS) {
+            sb.append(c).append('=').append(getCount(c)).append(", ");
+        }
+        sb.append("TIME_WITHOUT_PASSIVE=").append(getTimeWithoutPassive());
+        for (Phase p : PHASES) {
+            sb.append(", ").append(p).append("={").append(getHistogram(p)).append('}');
+        }
+        return sb.append('}').toString();
+    }
+}
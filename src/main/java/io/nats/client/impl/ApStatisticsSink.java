@@ -0,0 +1,22 @@
+package io.nats.client.impl;
+
+/**
+ * Receives the active / passive statistics as they are recorded,
+ * for instance to forward them to a metrics library.
+ * Methods are called on the thread doing the work, including the reconnect thread
+ * during a failover, so implementations must be quick and should not block.
+ */
+public interface ApStatisticsSink {
+    /**
+     * A failover phase completed
+     * @param phase the phase
+     * @param nanos how long it took in nanoseconds
+     */
+    default void phase(ApStatistics.Phase phase, long nanos) {}
+
+    /**
+     * A counter was incremented
+     * @param counter the counter
+     */
+    default void increment(ApStatistics.Counter counter) {}
+}
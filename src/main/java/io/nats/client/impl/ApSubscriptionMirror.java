@@ -0,0 +1,109 @@
+package io.nats.client.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the active connection's subscription interest registered on the passive connection.
+ * The passive subscribes with the same sids the active uses, but never registers a subscription
+ * object for them, so anything the passive receives for those sids is dropped.
+ * When the passive's data port is taken over, the interest is already on the socket,
+ * and the resubscribe for those sids can be skipped.
+ */
+class ApSubscriptionMirror {
+    private final Set<String> mirroredSids;
+    private volatile Set<String> inheritedSids;
+    private volatile NatsConnection target;
+
+    ApSubscriptionMirror() {
+        mirroredSids = ConcurrentHashMap.newKeySet();
+        inheritedSids = Collections.emptySet();
+    }
+
+    void subscribe(NatsConnection passive, String sid, String subject, String queueName) {
+        if (passive != null && passive.isConnected()) {
+            passive.sendSubscriptionMessage(sid, subject, queueName, true);
+            if (passive == target) {
+                mirroredSids.add(sid);
+            }
+        }
+    }
+
+    void unsubscribe(NatsConnection passive, String sid, int after) {
+        if (after <= 0) {
+            mirroredSids.remove(sid);
+        }
+        if (passive != null && passive.isConnected()) {
+            String unsub = after > 0 ? "UNSUB " + sid + " " + after : "UNSUB " + sid;
+            passive.queueInternalOutgoing(new ProtocolMessage(unsub.getBytes(StandardCharsets.US_ASCII), true));
+        }
+    }
+
+    /**
+     * Send the whole subscription set to a passive that has just connected or reconnected.
+     * @param passive the passive connection
+     * @param subscribers the active connection's subscribers
+     */
+    void replay(NatsConnection passive, Map<String, NatsSubscription> subscribers) {
+        target = passive;
+        mirroredSids.clear();
+        subscribers.forEach((sid, sub) -> {
+            if (!sub.isDraining()) {
+                subscribe(passive, sid, sub.getSubject(), sub.getQueueName());
+            }
+        });
+    }
+
+    boolean isTarget(NatsConnection passive) {
+        return passive == target;
+    }
+
+    /**
+     * Stop counting a sid as mirrored, because its interest was removed from the passive's socket.
+     * @param sid the sid
+     */
+    void forget(String sid) {
+        mirroredSids.remove(sid);
+    }
+
+    /**
+     * Called when a standby's data port is taken over by the active.
+     * Only the passive the set was replayed to carries the interest.
+     * If it still had unsent outgoing messages, some of the mirrored
+     * interest never made it to the server, so nothing is inherited.
+     * @param promoted the standby being promoted
+     */
+    void promote(NatsConnection promoted) {
+        if (promoted == target && promoted.outgoingPendingMessageCount() == 0) {
+            Set<String> inherited = ConcurrentHashMap.newKeySet();
+            inherited.addAll(mirroredSids);
+            inheritedSids = inherited;
+        }
+        else {
+            inheritedSids = Collections.emptySet();
+        }
+        target = null;
+        mirroredSids.clear();
+    }
+
+    /**
+     * Whether a resubscribe for this sid can be skipped because the interest
+     * came along with the promoted passive's data port. Each sid is only skipped once.
+     * @param sid the sid
+     * @return true if it was inherited
+     */
+    boolean inherited(String sid) {
+        return inheritedSids.remove(sid);
+    }
+
+    /**
+     * Called when the active is not using the promoted passive's data port,
+     * so every subscription must be resent.
+     */
+    void clearInherited() {
+        inheritedSids = Collections.emptySet();
+    }
+}
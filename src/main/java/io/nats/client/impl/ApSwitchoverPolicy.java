@@ -0,0 +1,51 @@
+package io.nats.client.impl;
+
+/**
+ * Decides when a live but degraded active should hand over to the passive.
+ * Samples pair the active's RTT with the passive's. The active's PING is queued behind
+ * its outgoing messages, so its RTT also reflects how long publishes wait to be acknowledged.
+ * A switchover is due once every sample for the whole window has the active slower
+ * than the passive by more than the margin. Any sample within the margin starts the window over.
+ */
+class ApSwitchoverPolicy {
+    static final int SAMPLES_PER_WINDOW = 5;
+
+    private final long marginNanos;
+    private final long windowNanos;
+    private boolean worse;     // any nano time is a valid start, so it has its own flag
+    private long worseSince;
+
+    ApSwitchoverPolicy(long marginNanos, long windowNanos) {
+        this.marginNanos = marginNanos;
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * @return how often to sample
+     */
+    long sampleIntervalNanos() {
+        return Math.max(1, windowNanos / SAMPLES_PER_WINDOW);
+    }
+
+    /**
+     * @param activeRttNanos the active's RTT, Long.MAX_VALUE if it did not answer
+     * @param passiveRttNanos the passive's RTT, Long.MAX_VALUE if it did not answer
+     * @param nowNanos the time of the sample
+     * @return true if a switchover is due
+     */
+    synchronized boolean sample(long activeRttNanos, long passiveRttNanos, long nowNanos) {
+        if (passiveRttNanos == Long.MAX_VALUE || activeRttNanos - passiveRttNanos <= marginNanos) {
+            worse = false;
+            return false;
+        }
+        if (!worse) {
+            worse = true;
+            worseSince = nowNanos;
+        }
+        return nowNanos - worseSince >= windowNanos;
+    }
+
+    synchronized void reset() {
+        worse = false;
+    }
+}
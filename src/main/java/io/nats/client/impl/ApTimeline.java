@@ -0,0 +1,155 @@
+package io.nats.client.impl;
+
+import io.nats.client.NatsSystemClock;
+import io.nats.client.support.NatsUri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A fixed size ring of timestamped failover events for an {@link ApConnection},
+ * oldest first, so failover phases can be lined up against latency spikes.
+ * Recording does not allocate, once full the oldest events are overwritten.
+ */
+public class ApTimeline {
+
+    public enum Type {
+        SWITCHOVER,
+        LAME_DUCK,
+        ACTIVE_LOST,
+        READER_STOPPED,
+        WRITER_STOPPED,
+        PORT_SWAPPED,
+        FAILOVER_FAILED,
+        COLD_RECONNECT,
+        CONNECTED,
+        PASSIVE_REBUILD_STARTED,
+        PASSIVE_REBUILD_FINISHED,
+        PASSIVE_REBUILD_FAILED
+    }
+
+    public static class Event {
+        private final Type type;
+        private final long nanoTime;
+        private final long epochMillis;
+        private final NatsUri server;
+
+        Event(Type type, long nanoTime, long epochMillis, NatsUri server) {
+            this.type = type;
+            this.nanoTime = nanoTime;
+            this.epochMillis = epochMillis;
+            this.server = server;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the {@link NatsSystemClock#nanoTime()} of the event, for measuring between events
+         */
+        public long getNanoTime() {
+            return nanoTime;
+        }
+
+        /**
+         * @return the wall clock time of the event
+         */
+        public long getEpochMillis() {
+            return epochMillis;
+        }
+
+        /**
+         * @return the server involved, may be null
+         */
+        public NatsUri getServer() {
+            return server;
+        }
+
+        @Override
+        public String toString() {
+            return epochMillis + " " + type + (server == null ? "" : " " + server);
+        }
+    }
+
+    private final Type[] types;
+    private final long[] nanoTimes;
+    private final long[] epochMillis;
+    private final NatsUri[] servers;
+    private long recorded;
+
+    ApTimeline(int capacity) {
+        capacity = Math.max(0, capacity);
+        types = new Type[capacity];
+        nanoTimes = new long[capacity];
+        epochMillis = new long[capacity];
+        servers = new NatsUri[capacity];
+    }
+
+    void record(Type type, NatsUri server) {
+        if (types.length == 0) {
+            return;
+        }
+        long nanoTime = NatsSystemClock.nanoTime();
+        long millis = System.currentTimeMillis();
+        synchronized (this) {
+            int slot = (int) (recorded++ % types.length);
+            types[slot] = type;
+            nanoTimes[slot] = nanoTime;
+            epochMillis[slot] = millis;
+            servers[slot] = server;
+        }
+    }
+
+    /**
+     * @return the number of events the timeline holds
+     */
+    public int capacity() {
+        return types.length;
+    }
+
+    /**
+     * @return the number of events recorded since the connection was made, including overwritten ones
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * A copy of the events currently held, oldest first
+     * @return the events
+     */
+    public List<Event> snapshot() {
+        if (types.length == 0) {
+            return Collections.emptyList();
+        }
+        synchronized (this) {
+            int size = (int) Math.min(recorded, types.length);
+            List<Event> events = new ArrayList<>(size);
+            for (long i = recorded - size; i < recorded; i++) {
+                int slot = (int) (i % types.length);
+                events.add(new Event(types[slot], nanoTimes[slot], epochMillis[slot], servers[slot]));
+            }
+            return events;
+        }
+    }
+
+    /**
+     * The events currently held, oldest first, see {@link #snapshot()}
+     * @return a stream of the events
+     */
+    public Stream<Event> stream() {
+        return snapshot().stream();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ApTimeline{");
+        for (Event e : snapshot()) {
+            sb.append('\n').append(e);
+        }
+        return sb.append('}').toString();
+    }
+}